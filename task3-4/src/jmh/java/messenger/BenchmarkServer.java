@@ -0,0 +1,64 @@
+package messenger;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// In-process messenger server backed by EmbeddedRedis or the in-memory store, so benchmarks need neither
+// sockets nor a real Redis
+public class BenchmarkServer implements AutoCloseable
+{
+    private final EmbeddedRedis redis;
+    private final MessageStore store;
+    private final ExecutorService workers;
+    private final Server server;
+    private final ManagedChannel channel;
+
+    public BenchmarkServer(int workerCount) throws IOException
+    {
+        this(workerCount, StoreBackend.REDIS);
+    }
+
+    public BenchmarkServer(int workerCount, StoreBackend backend) throws IOException
+    {
+        redis = backend == StoreBackend.REDIS ? new EmbeddedRedis() : null;
+        store = redis != null
+                ? new RedisMessageStore("127.0.0.1", redis.port(), workerCount + Runtime.getRuntime().availableProcessors())
+                : new InMemoryMessageStore();
+        workers = Executors.newFixedThreadPool(workerCount);
+
+        String name = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(name)
+                .executor(workers)
+                .addService(new Main.MessengerServiceImpl(store))
+                .build()
+                .start();
+        channel = InProcessChannelBuilder.forName(name).build();
+    }
+
+    public MessengerServiceGrpc.MessengerServiceBlockingStub blockingStub()
+    {
+        return MessengerServiceGrpc.newBlockingStub(channel);
+    }
+
+    public MessengerServiceGrpc.MessengerServiceStub asyncStub()
+    {
+        return MessengerServiceGrpc.newStub(channel);
+    }
+
+    @Override
+    public void close() throws Exception
+    {
+        channel.shutdownNow();
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        workers.shutdownNow();
+        store.close();
+        if (redis != null) redis.close();
+    }
+}
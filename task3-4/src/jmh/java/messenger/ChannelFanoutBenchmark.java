@@ -0,0 +1,109 @@
+package messenger;
+
+import io.grpc.stub.StreamObserver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// One op = one sendChannelMessage plus delivery to every subscriber stream
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChannelFanoutBenchmark
+{
+    private static final String CHANNEL = "bench-channel";
+
+    @Param({"10", "100", "1000"})
+    public int subscribers;
+
+    private BenchmarkServer server;
+    private MessengerServiceGrpc.MessengerServiceBlockingStub stub;
+    private Messenger.ChannelMessageRequest request;
+    private volatile CountDownLatch delivered = new CountDownLatch(0);
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        server = new BenchmarkServer(4);
+        stub = server.blockingStub();
+        request = Messenger.ChannelMessageRequest.newBuilder()
+                .setFrom("admin")
+                .setChannelId(CHANNEL)
+                .setContent("broadcast from the benchmark")
+                .build();
+
+        AtomicReferenceArray<Boolean> seen = new AtomicReferenceArray<>(subscribers);
+        AtomicInteger seenCount = new AtomicInteger();
+        MessengerServiceGrpc.MessengerServiceStub asyncStub = server.asyncStub();
+        for (int i = 0; i < subscribers; i++)
+        {
+            int index = i;
+            asyncStub.receiveChannelMessages(Messenger.ChannelReceiveRequest.newBuilder()
+                    .setUsername("subscriber_" + i)
+                    .setChannelId(CHANNEL)
+                    .build(), new StreamObserver<>()
+            {
+                @Override
+                public void onNext(Messenger.MessageResponse msg)
+                {
+                    if (seen.compareAndSet(index, null, true)) seenCount.incrementAndGet();
+                    delivered.countDown();
+                }
+
+                @Override
+                public void onError(Throwable t)
+                {
+                }
+
+                @Override
+                public void onCompleted()
+                {
+                }
+            });
+        }
+
+        // Subscriptions register asynchronously; probe until every stream has received something
+        while (seenCount.get() < subscribers)
+        {
+            stub.sendChannelMessage(request);
+            Thread.sleep(20);
+        }
+        Thread.sleep(200);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        server.close();
+    }
+
+    @Benchmark
+    public void sendAndAwaitFanout() throws InterruptedException
+    {
+        CountDownLatch latch = new CountDownLatch(subscribers);
+        delivered = latch;
+        stub.sendChannelMessage(request);
+        if (!latch.await(10, TimeUnit.SECONDS))
+        {
+            throw new IllegalStateException("Fan-out did not complete, " + latch.getCount() + " deliveries missing");
+        }
+    }
+}
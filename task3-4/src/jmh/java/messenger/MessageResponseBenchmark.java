@@ -0,0 +1,55 @@
+package messenger;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageResponseBenchmark
+{
+    public String from = "user_42";
+    public String content = "[user_42] msg 17 with a typical chat-sized payload";
+
+    private final byte[] serialized = Messenger.MessageResponse.newBuilder()
+            .setFrom(from)
+            .setContent(content)
+            .setSystem(false)
+            .build()
+            .toByteArray();
+
+    @Benchmark
+    public Messenger.MessageResponse build()
+    {
+        return Messenger.MessageResponse.newBuilder()
+                .setFrom(from)
+                .setContent(content)
+                .setSystem(false)
+                .build();
+    }
+
+    @Benchmark
+    public byte[] buildAndSerialize()
+    {
+        return build().toByteArray();
+    }
+
+    @Benchmark
+    public Messenger.MessageResponse parse() throws InvalidProtocolBufferException
+    {
+        return Messenger.MessageResponse.parseFrom(serialized);
+    }
+}
@@ -0,0 +1,82 @@
+package messenger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OfflineStoreBenchmark
+{
+    private static final int INBOX_SIZE = 100;
+
+    @Param({"REDIS", "MEMORY"})
+    public StoreBackend backend;
+
+    private EmbeddedRedis redis;
+    private MessageStore store;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        if (backend == StoreBackend.REDIS)
+        {
+            redis = new EmbeddedRedis();
+            store = new RedisMessageStore("127.0.0.1", redis.port(), 8);
+        }
+        else
+        {
+            store = new InMemoryMessageStore();
+        }
+    }
+
+    // The inbox written by store() is never drained; start each iteration from an empty one
+    @TearDown(Level.Iteration)
+    public void flush()
+    {
+        if (redis != null) redis.flushAll();
+        else store.drainMessages("offline");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        store.close();
+        if (redis != null) redis.close();
+    }
+
+    @Benchmark
+    public void store()
+    {
+        store.storeMessage("sender", "offline", "queued while the recipient was away", false, 10);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INBOX_SIZE)
+    public List<MessageStore.StoredMessage> storeThenDrain()
+    {
+        for (int i = 0; i < INBOX_SIZE; i++)
+        {
+            store.storeMessage("sender", "reconnecting", "queued message " + i, i % 10 == 0, 10);
+        }
+        return store.drainMessages("reconnecting");
+    }
+}
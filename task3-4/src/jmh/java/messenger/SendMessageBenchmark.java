@@ -0,0 +1,85 @@
+package messenger;
+
+import io.grpc.stub.StreamObserver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SendMessageBenchmark
+{
+    private BenchmarkServer server;
+    private MessengerServiceGrpc.MessengerServiceBlockingStub stub;
+    private Messenger.MessageRequest request;
+    private final AtomicLong received = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        server = new BenchmarkServer(4);
+        stub = server.blockingStub();
+
+        stub.connect(Messenger.ConnectRequest.newBuilder().setUsername("receiver").build());
+        server.asyncStub().receiveMessages(Messenger.ReceiveRequest.newBuilder().setUsername("receiver").build(),
+                new StreamObserver<>()
+                {
+                    @Override
+                    public void onNext(Messenger.MessageResponse msg)
+                    {
+                        received.incrementAndGet();
+                    }
+
+                    @Override
+                    public void onError(Throwable t)
+                    {
+                    }
+
+                    @Override
+                    public void onCompleted()
+                    {
+                    }
+                });
+
+        request = Messenger.MessageRequest.newBuilder()
+                .setFrom("sender")
+                .setTo("receiver")
+                .setContent("hello from the benchmark")
+                .build();
+
+        // receiveMessages registers asynchronously; wait until the first message actually arrives
+        while (received.get() == 0)
+        {
+            stub.sendMessage(request);
+            Thread.sleep(10);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        server.close();
+    }
+
+    @Benchmark
+    public Messenger.SendResponse sendMessage()
+    {
+        return stub.sendMessage(request);
+    }
+}
@@ -0,0 +1,161 @@
+package messenger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Supplier;
+
+// In-memory channel catalogue: an inverted tag -> channel index for search, and tag -> stream watchers so a
+// new channel is announced only to streams that asked for one of its tags. Ids are kept sorted, which makes
+// the last id of a page a stable page token.
+public class ChannelDirectory
+{
+    public record ChannelInfo(String id, String creator, List<String> tags)
+    {
+    }
+
+    public record Page(List<ChannelInfo> channels, String nextToken)
+    {
+    }
+
+    private final Map<String, ChannelInfo> channels = new ConcurrentHashMap<>();
+    private final NavigableSet<String> ids = new ConcurrentSkipListSet<>();
+    private final Map<String, NavigableSet<String>> byTag = new ConcurrentHashMap<>();
+    private final Map<String, Set<OutboundQueue>> watchersByTag = new ConcurrentHashMap<>();
+    private final Set<OutboundQueue> watchingAll = ConcurrentHashMap.newKeySet();
+    // What each queue currently watches, so a new watch replaces the old one
+    private final Map<OutboundQueue, Set<String>> watches = new ConcurrentHashMap<>();
+
+    public void add(ChannelInfo channel)
+    {
+        ChannelInfo previous = channels.put(channel.id(), channel);
+        if (previous != null)
+        {
+            for (String tag : previous.tags()) removeFrom(byTag, tag, channel.id());
+        }
+        for (String tag : channel.tags())
+        {
+            if (!tag.isEmpty()) addTo(byTag, tag, channel.id(), ConcurrentSkipListSet::new);
+        }
+        ids.add(channel.id());
+    }
+
+    public ChannelInfo get(String id)
+    {
+        return channels.get(id);
+    }
+
+    public int size()
+    {
+        return channels.size();
+    }
+
+    // Channels carrying every tag in `tags` whose id starts with `prefix`, in id order after `after`
+    public Page search(Collection<String> tags, String prefix, String after, int limit)
+    {
+        NavigableSet<String> candidates = ids;
+        for (String tag : tags)
+        {
+            NavigableSet<String> tagged = byTag.get(tag);
+            if (tagged == null) return new Page(List.of(), "");
+            if (tagged.size() < candidates.size()) candidates = tagged;
+        }
+
+        String from = after.isEmpty() || after.compareTo(prefix) < 0 ? prefix : after;
+        boolean inclusive = after.isEmpty() || after.compareTo(prefix) < 0;
+
+        List<ChannelInfo> page = new ArrayList<>();
+        for (String id : candidates.tailSet(from, inclusive))
+        {
+            if (!id.startsWith(prefix)) break;
+
+            ChannelInfo channel = channels.get(id);
+            if (channel == null || !channel.tags().containsAll(tags)) continue;
+
+            if (page.size() == limit) return new Page(page, page.get(page.size() - 1).id());
+            page.add(channel);
+        }
+        return new Page(page, "");
+    }
+
+    public void watch(OutboundQueue queue, Collection<String> tags, boolean all)
+    {
+        unwatch(queue);
+        if (queue.isClosed()) return;
+
+        Set<String> watched = new HashSet<>(tags);
+        watches.put(queue, watched);
+        if (all) watchingAll.add(queue);
+        for (String tag : watched)
+        {
+            addTo(watchersByTag, tag, queue, ConcurrentHashMap::newKeySet);
+        }
+    }
+
+    public void unwatch(OutboundQueue queue)
+    {
+        watchingAll.remove(queue);
+        Set<String> watched = watches.remove(queue);
+        if (watched == null) return;
+
+        for (String tag : watched) removeFrom(watchersByTag, tag, queue);
+    }
+
+    // Each watcher once, however many of the channel's tags it matches; closed streams are dropped on the way
+    public Set<OutboundQueue> watchers(ChannelInfo channel)
+    {
+        Set<OutboundQueue> matched = new HashSet<>();
+        collect(watchingAll, matched);
+        for (String tag : channel.tags())
+        {
+            Set<OutboundQueue> watching = watchersByTag.get(tag);
+            if (watching != null) collect(watching, matched);
+        }
+        return matched;
+    }
+
+    // Streams that closed without unwatching and never met an announcement since; returns how many
+    public int sweep()
+    {
+        Set<OutboundQueue> closed = new HashSet<>();
+        for (OutboundQueue queue : watchingAll) if (queue.isClosed()) closed.add(queue);
+        for (OutboundQueue queue : watches.keySet()) if (queue.isClosed()) closed.add(queue);
+        for (OutboundQueue queue : closed) unwatch(queue);
+        return closed.size();
+    }
+
+    private void collect(Set<OutboundQueue> watching, Set<OutboundQueue> matched)
+    {
+        for (OutboundQueue queue : watching)
+        {
+            if (queue.isClosed()) unwatch(queue);
+            else matched.add(queue);
+        }
+    }
+
+    // Both sides run inside compute, so an add never lands in a set that is being dropped as empty
+    private static <K, V, S extends Set<V>> void addTo(Map<K, S> index, K key, V value, Supplier<S> factory)
+    {
+        index.compute(key, (k, values) ->
+        {
+            S target = values == null ? factory.get() : values;
+            target.add(value);
+            return target;
+        });
+    }
+
+    private static <K, V, S extends Set<V>> void removeFrom(Map<K, S> index, K key, V value)
+    {
+        index.computeIfPresent(key, (k, values) ->
+        {
+            values.remove(value);
+            return values.isEmpty() ? null : values;
+        });
+    }
+}
@@ -0,0 +1,251 @@
+package messenger;
+
+import io.grpc.stub.StreamObserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+public class ChannelFanout
+{
+    private final int queueCapacity;
+    private final OutboundQueue.OverflowPolicy policy;
+    private final ExecutorService[] dispatchers;
+    private final Executor deliveryPool;
+    private final ChannelHistory history;
+
+    private final SubscriberRegistry subscribers = new SubscriberRegistry();
+    private final Map<String, LongAdder> channelDrops = new ConcurrentHashMap<>();
+    private final Map<String, ChannelStats> channelStats = new ConcurrentHashMap<>();
+    private final LongAdder totalDrops = new LongAdder();
+
+    public ChannelFanout(int queueCapacity, OutboundQueue.OverflowPolicy policy, Executor deliveryPool)
+    {
+        this(queueCapacity, policy, deliveryPool, Runtime.getRuntime().availableProcessors(), null);
+    }
+
+    public ChannelFanout(int queueCapacity, OutboundQueue.OverflowPolicy policy, Executor deliveryPool,
+                         int dispatchThreads)
+    {
+        this(queueCapacity, policy, deliveryPool, dispatchThreads, null);
+    }
+
+    public ChannelFanout(int queueCapacity, OutboundQueue.OverflowPolicy policy, Executor deliveryPool,
+                         int dispatchThreads, ChannelHistory history)
+    {
+        this.queueCapacity = queueCapacity;
+        this.policy = policy;
+        this.deliveryPool = deliveryPool;
+        this.history = history;
+        this.dispatchers = new ExecutorService[dispatchThreads];
+        for (int i = 0; i < dispatchThreads; i++)
+        {
+            dispatchers[i] = Executors.newSingleThreadExecutor(Threads.daemon("fanout-dispatch-" + i));
+        }
+    }
+
+    public OutboundQueue subscribe(String channelId, StreamObserver<SerializedMessage> observer,
+                                   Consumer<SerializedMessage> spill)
+    {
+        return subscribe(channelId, observer, spill, false);
+    }
+
+    public OutboundQueue subscribe(String channelId, StreamObserver<SerializedMessage> observer,
+                                   Consumer<SerializedMessage> spill, boolean acceptsBatches)
+    {
+        return subscribe(channelId, observer, spill, acceptsBatches, -1);
+    }
+
+    public OutboundQueue subscribe(String channelId, StreamObserver<SerializedMessage> observer,
+                                   Consumer<SerializedMessage> spill, boolean acceptsBatches, long startOffset)
+    {
+        return subscribe(channelId, observer, spill, acceptsBatches, startOffset, List.of());
+    }
+
+    // With a start offset the subscriber first gets the logged history from that offset. The end of the
+    // replay is taken on the channel's dispatcher, so nothing is missed or repeated between history and live.
+    // Otherwise it first gets the backlog (what it spilled last time), which the queue sends ahead of
+    // everything offered after it.
+    public OutboundQueue subscribe(String channelId, StreamObserver<SerializedMessage> observer,
+                                   Consumer<SerializedMessage> spill, boolean acceptsBatches, long startOffset,
+                                   List<SerializedMessage> backlog)
+    {
+        OutboundQueue queue = new OutboundQueue(observer, queueCapacity, deliveryPool, policy, spill,
+                dropCounter(channelId));
+
+        if (history == null || startOffset < 0)
+        {
+            if (!backlog.isEmpty()) queue.replay(backlog.iterator());
+            subscribers.add(channelId, queue, acceptsBatches);
+            return queue;
+        }
+
+        dispatcherFor(channelId).execute(() ->
+        {
+            queue.replay(history.replay(channelId, startOffset, history.nextOffset(channelId)));
+            subscribers.add(channelId, queue, acceptsBatches);
+        });
+        return queue;
+    }
+
+    public void unsubscribe(String channelId, OutboundQueue queue)
+    {
+        subscribers.remove(channelId, queue);
+    }
+
+    public int sweep()
+    {
+        return subscribers.compactAll();
+    }
+
+    public void publish(String channelId, SerializedMessage msg)
+    {
+        // Without a log there is nothing to do for a channel nobody listens to
+        if (history == null && subscribers.isEmpty(channelId)) return;
+
+        // Messages of one channel always go through the same dispatcher, so per-channel order is kept
+        // and log offsets follow delivery order
+        long published = System.nanoTime();
+        dispatcherFor(channelId).execute(() ->
+        {
+            SerializedMessage stamped = history == null ? msg : history.append(channelId, msg.message());
+            SubscriberRegistry.Subscriber[] targets = subscribers.snapshot(channelId);
+
+            boolean sawClosed = false;
+            if (targets.length == 1)
+            {
+                sawClosed = !targets[0].queue().offer(stamped) && targets[0].queue().isClosed();
+            }
+            else
+            {
+                for (SubscriberRegistry.Subscriber target : targets)
+                {
+                    if (!target.queue().offer(stamped)) sawClosed |= target.queue().isClosed();
+                }
+            }
+            if (sawClosed) subscribers.compact(channelId);
+            stats(channelId).recordFanout(System.nanoTime() - published);
+        });
+    }
+
+    // One pass over the subscribers for the whole batch: batch-aware streams get a single envelope,
+    // the rest get the messages one by one
+    public void publishBatch(String channelId, List<Messenger.MessageResponse> messages)
+    {
+        if (messages.isEmpty() || history == null && subscribers.isEmpty(channelId)) return;
+
+        long published = System.nanoTime();
+        dispatcherFor(channelId).execute(() ->
+        {
+            List<SerializedMessage> singles = new ArrayList<>(messages.size());
+            Messenger.MessageResponse.Builder batch = Messenger.MessageResponse.newBuilder();
+            for (Messenger.MessageResponse msg : messages)
+            {
+                SerializedMessage single = history == null ? SerializedMessage.of(msg) : history.append(channelId, msg);
+                singles.add(single);
+                batch.addBatch(single.message());
+            }
+            SerializedMessage envelope = SerializedMessage.of(batch.build());
+
+            boolean sawClosed = false;
+            for (SubscriberRegistry.Subscriber target : subscribers.snapshot(channelId))
+            {
+                OutboundQueue queue = target.queue();
+                if (queue.isClosed())
+                {
+                    sawClosed = true;
+                }
+                else if (target.acceptsBatches())
+                {
+                    queue.offer(envelope);
+                }
+                else
+                {
+                    for (SerializedMessage single : singles) queue.offer(single);
+                }
+            }
+            if (sawClosed) subscribers.compact(channelId);
+            stats(channelId).recordFanout(System.nanoTime() - published);
+        });
+    }
+
+    public ChannelStats stats(String channelId)
+    {
+        return channelStats.computeIfAbsent(channelId, k -> new ChannelStats());
+    }
+
+    // Null for a channel nothing was recorded for, so stats queries do not create entries
+    public ChannelStats existingStats(String channelId)
+    {
+        return channelStats.get(channelId);
+    }
+
+    public void close()
+    {
+        for (ExecutorService dispatcher : dispatchers) dispatcher.shutdown();
+    }
+
+    public int subscriberCount(String channelId)
+    {
+        return subscribers.snapshot(channelId).length;
+    }
+
+    public long subscriberCount()
+    {
+        long count = 0;
+        for (String channelId : subscribers.channelIds()) count += subscriberCount(channelId);
+        return count;
+    }
+
+    public long queueDepth(String channelId)
+    {
+        long depth = 0;
+        for (SubscriberRegistry.Subscriber subscriber : subscribers.snapshot(channelId))
+        {
+            depth += subscriber.queue().depth();
+        }
+        return depth;
+    }
+
+    public long queueDepth()
+    {
+        long depth = 0;
+        for (String channelId : subscribers.channelIds())
+        {
+            depth += queueDepth(channelId);
+        }
+        return depth;
+    }
+
+    public long droppedCount(String channelId)
+    {
+        LongAdder drops = channelDrops.get(channelId);
+        return drops == null ? 0 : drops.sum();
+    }
+
+    public long droppedCount()
+    {
+        return totalDrops.sum();
+    }
+
+    private Consumer<SerializedMessage> dropCounter(String channelId)
+    {
+        LongAdder channelCounter = channelDrops.computeIfAbsent(channelId, k -> new LongAdder());
+        return msg ->
+        {
+            channelCounter.increment();
+            totalDrops.increment();
+        };
+    }
+
+    private ExecutorService dispatcherFor(String channelId)
+    {
+        return dispatchers[Math.floorMod(channelId.hashCode(), dispatchers.length)];
+    }
+}
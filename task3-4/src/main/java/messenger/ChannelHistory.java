@@ -0,0 +1,206 @@
+package messenger;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+// Channel logs under one root directory, opened on first use and only for channels that exist. Offsets are
+// local to these logs: the id kept in the root directory goes out with every offset, so one taken on another
+// node is not replayed here.
+public class ChannelHistory implements AutoCloseable
+{
+    private static final int REPLAY_CHUNK = 256;
+    private static final String ID_FILE = "log.id";
+
+    private final Path root;
+    private final long segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final Predicate<String> channels;
+    private final String id;
+    private final Map<String, ChannelLog> logs = new ConcurrentHashMap<>();
+
+    public ChannelHistory(Path root, long segmentBytes)
+    {
+        this(root, segmentBytes, 0, 0, channelId -> true);
+    }
+
+    public ChannelHistory(Path root, long segmentBytes, long retentionBytes, long retentionMillis,
+                          Predicate<String> channels)
+    {
+        this.root = root;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        this.channels = channels;
+        this.id = loadId(root);
+    }
+
+    public String id()
+    {
+        return id;
+    }
+
+    // Stamps the message with its offset; if the log cannot be written the message is still delivered, without one
+    public SerializedMessage append(String channelId, Messenger.MessageResponse msg)
+    {
+        ChannelLog log = log(channelId);
+        if (log == null) return SerializedMessage.of(msg);
+
+        SerializedMessage stamped = SerializedMessage.of(
+                msg.toBuilder().setOffset(log.nextOffset()).setLog(id).build());
+        try
+        {
+            log.append(stamped.bytes());
+        }
+        catch (IOException e)
+        {
+            Log.error("Failed to append to channel log " + channelId + ": " + e.getMessage());
+            return SerializedMessage.of(msg);
+        }
+        return stamped;
+    }
+
+    public long nextOffset(String channelId)
+    {
+        ChannelLog log = log(channelId);
+        return log == null ? 0 : log.nextOffset();
+    }
+
+    // Records in [from, to), read lazily a chunk at a time
+    public Iterator<SerializedMessage> replay(String channelId, long from, long to)
+    {
+        ChannelLog log = log(channelId);
+        if (log == null || from >= to) return Collections.emptyIterator();
+
+        return new Iterator<>()
+        {
+            private final Deque<SerializedMessage> chunk = new ArrayDeque<>();
+            private long next = from;
+
+            @Override
+            public boolean hasNext()
+            {
+                while (chunk.isEmpty() && next < to) fill();
+                return !chunk.isEmpty();
+            }
+
+            @Override
+            public SerializedMessage next()
+            {
+                if (!hasNext()) throw new NoSuchElementException();
+                return chunk.poll();
+            }
+
+            private void fill()
+            {
+                try
+                {
+                    List<byte[]> records = log.read(next, (int) Math.min(REPLAY_CHUNK, to - next));
+                    if (records.isEmpty())
+                    {
+                        next = to;
+                        return;
+                    }
+                    next = Math.max(next, log.startOffset()) + records.size();
+                    for (byte[] record : records)
+                    {
+                        try
+                        {
+                            chunk.add(SerializedMessage.parseFrom(record));
+                        }
+                        catch (InvalidProtocolBufferException e)
+                        {
+                            Log.warn("Skipping corrupt record in channel log " + channelId);
+                        }
+                    }
+                }
+                catch (IOException e)
+                {
+                    Log.error("Failed to read channel log " + channelId + ": " + e.getMessage());
+                    next = to;
+                }
+            }
+        };
+    }
+
+    // Applies the size and age limits to every open log; returns how many segments were deleted
+    public int retain()
+    {
+        int removed = 0;
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, ChannelLog> entry : logs.entrySet())
+        {
+            try
+            {
+                removed += entry.getValue().retain(now);
+            }
+            catch (IOException e)
+            {
+                Log.error("Failed to trim channel log " + entry.getKey() + ": " + e.getMessage());
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        for (ChannelLog log : logs.values()) log.close();
+    }
+
+    // Kept across restarts so offsets handed out before one still replay after it
+    private static String loadId(Path root)
+    {
+        Path file = root.resolve(ID_FILE);
+        try
+        {
+            if (Files.exists(file)) return Files.readString(file, StandardCharsets.UTF_8).trim();
+            String id = UUID.randomUUID().toString();
+            Files.createDirectories(root);
+            Files.writeString(file, id, StandardCharsets.UTF_8);
+            return id;
+        }
+        catch (IOException e)
+        {
+            // Offsets from before this start are refused instead of replaying the wrong range
+            Log.error("Failed to keep channel log id in " + file + ": " + e.getMessage());
+            return UUID.randomUUID().toString();
+        }
+    }
+
+    // Null for a channel that does not exist, so a client-supplied id never gets a directory of its own
+    private ChannelLog log(String channelId)
+    {
+        ChannelLog open = logs.get(channelId);
+        if (open != null || !channels.test(channelId)) return open;
+
+        return logs.computeIfAbsent(channelId, id ->
+        {
+            try
+            {
+                return new ChannelLog(root.resolve("ch-" + URLEncoder.encode(id, StandardCharsets.UTF_8)), segmentBytes,
+                        retentionBytes, retentionMillis);
+            }
+            catch (IOException e)
+            {
+                Log.error("Failed to open channel log " + id + ": " + e.getMessage());
+                return null;
+            }
+        });
+    }
+}
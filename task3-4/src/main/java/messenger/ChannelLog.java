@@ -0,0 +1,286 @@
+package messenger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+
+// Append-only log of one channel. Records are [int length][MessageResponse bytes] in segment files named
+// after the offset of their first record. Every segment keeps a sparse .idx of (offset, file position)
+// pairs, so a read seeks to the nearest indexed record and scans forward through a read-only mapping.
+// Retention drops whole segments from the front; offsets below startOffset() are gone.
+public class ChannelLog implements AutoCloseable
+{
+    private static final int INDEX_INTERVAL_BYTES = 4096;
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private Segment active;
+    private volatile long nextOffset;
+
+    public ChannelLog(Path dir, long segmentBytes) throws IOException
+    {
+        this(dir, segmentBytes, 0, 0);
+    }
+
+    // A zero limit keeps segments regardless of size or age
+    public ChannelLog(Path dir, long segmentBytes, long retentionBytes, long retentionMillis) throws IOException
+    {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        Files.createDirectories(dir);
+
+        try (Stream<Path> files = Files.list(dir))
+        {
+            for (Path file : files.filter(f -> f.getFileName().toString().endsWith(".log")).toList())
+            {
+                String name = file.getFileName().toString();
+                long base = Long.parseLong(name.substring(0, name.length() - ".log".length()));
+                segments.put(base, new Segment(dir, base));
+            }
+        }
+
+        if (segments.isEmpty()) segments.put(0L, new Segment(dir, 0));
+        active = segments.lastEntry().getValue();
+        nextOffset = active.base + active.count;
+    }
+
+    public long nextOffset()
+    {
+        return nextOffset;
+    }
+
+    public long startOffset()
+    {
+        return segments.firstKey();
+    }
+
+    // Single writer per channel (its fan-out dispatcher); readers only see records below nextOffset
+    public synchronized long append(byte[] record) throws IOException
+    {
+        long offset = nextOffset;
+        if (active.count > 0 && active.size + Integer.BYTES + record.length > segmentBytes)
+        {
+            active.seal();
+            active = new Segment(dir, offset);
+            segments.put(offset, active);
+        }
+
+        active.append(offset, record);
+        nextOffset = offset + 1;
+        return offset;
+    }
+
+    public List<byte[]> read(long fromOffset, int maxRecords) throws IOException
+    {
+        long end = nextOffset;
+        long offset = Math.max(fromOffset, startOffset());
+        List<byte[]> records = new ArrayList<>(Math.min(maxRecords, (int) Math.max(0, Math.min(end - offset, 1024))));
+
+        while (offset < end && records.size() < maxRecords)
+        {
+            Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+            if (entry == null) break;
+
+            int read = entry.getValue().read(offset, end, maxRecords - records.size(), records);
+            if (read == 0) break;
+            offset += read;
+        }
+        return records;
+    }
+
+    // Deletes the oldest segments while the log is over its size limit or they were last written before the
+    // age limit. The active segment always stays. Returns how many segments went.
+    public synchronized int retain(long nowMillis) throws IOException
+    {
+        long total = 0;
+        for (Segment segment : segments.values()) total += segment.size;
+
+        int removed = 0;
+        while (segments.firstEntry().getValue() != active)
+        {
+            Segment oldest = segments.firstEntry().getValue();
+            boolean oversize = retentionBytes > 0 && total > retentionBytes;
+            boolean expired = retentionMillis > 0 && nowMillis - oldest.lastWritten() > retentionMillis;
+            if (!oversize && !expired) break;
+
+            segments.remove(oldest.base);
+            total -= oldest.size;
+            oldest.delete();
+            removed++;
+        }
+        return removed;
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        for (Segment segment : segments.values()) segment.close();
+    }
+
+    private static final class Segment
+    {
+        private final long base;
+        private final Path logFile;
+        private final Path indexFile;
+        private final FileChannel log;
+        private final FileChannel index;
+        private final ConcurrentSkipListMap<Long, Integer> positions = new ConcurrentSkipListMap<>();
+        private volatile int size;
+        private volatile long count;
+        private int lastIndexed = -INDEX_INTERVAL_BYTES;
+        private MappedByteBuffer mapped;
+
+        Segment(Path dir, long base) throws IOException
+        {
+            this.base = base;
+            String name = String.format("%020d", base);
+            this.logFile = dir.resolve(name + ".log");
+            this.indexFile = dir.resolve(name + ".idx");
+            this.log = FileChannel.open(logFile,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.index = FileChannel.open(indexFile,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            recover();
+        }
+
+        // Loads the index, then scans forward from its last entry; a torn trailing record is cut off
+        private void recover() throws IOException
+        {
+            long fileSize = log.size();
+            ByteBuffer entries = ByteBuffer.allocate((int) index.size());
+            index.read(entries, 0);
+            entries.flip();
+
+            long scanFrom = 0;
+            int position = 0;
+            while (entries.remaining() >= 2 * Integer.BYTES)
+            {
+                int relative = entries.getInt();
+                int at = entries.getInt();
+                if (at >= fileSize) break;
+                positions.put(base + relative, at);
+                scanFrom = relative;
+                position = at;
+                lastIndexed = at;
+            }
+            index.truncate((long) positions.size() * 2 * Integer.BYTES);
+            index.position(index.size());
+
+            ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+            long records = scanFrom;
+            while (position + Integer.BYTES <= fileSize)
+            {
+                header.clear();
+                log.read(header, position);
+                int length = header.flip().getInt();
+                if (length < 0 || position + Integer.BYTES + (long) length > fileSize) break;
+                position += Integer.BYTES + length;
+                records++;
+            }
+
+            log.truncate(position);
+            size = position;
+            count = records;
+        }
+
+        void append(long offset, byte[] record) throws IOException
+        {
+            int position = size;
+            ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + record.length);
+            buffer.putInt(record.length).put(record).flip();
+            while (buffer.hasRemaining())
+            {
+                log.write(buffer, position + buffer.position());
+            }
+
+            if (position - lastIndexed >= INDEX_INTERVAL_BYTES)
+            {
+                ByteBuffer entry = ByteBuffer.allocate(2 * Integer.BYTES);
+                entry.putInt((int) (offset - base)).putInt(position).flip();
+                while (entry.hasRemaining()) index.write(entry);
+                positions.put(offset, position);
+                lastIndexed = position;
+            }
+
+            size = position + buffer.limit();
+            count++;
+        }
+
+        int read(long offset, long end, int maxRecords, List<byte[]> out) throws IOException
+        {
+            long last = Math.min(end, base + count);
+            if (offset >= last) return 0;
+
+            Map.Entry<Long, Integer> start = positions.floorEntry(offset);
+            long current = start == null ? base : start.getKey();
+            int position = start == null ? 0 : start.getValue();
+            ByteBuffer view = view(size);
+
+            int read = 0;
+            while (current < last && read < maxRecords)
+            {
+                int length = view.getInt(position);
+                if (current >= offset)
+                {
+                    byte[] record = new byte[length];
+                    view.get(position + Integer.BYTES, record);
+                    out.add(record);
+                    read++;
+                }
+                position += Integer.BYTES + length;
+                current++;
+            }
+            return read;
+        }
+
+        // The active segment grows under the mapping, so it is remapped once a reader needs newer bytes
+        private synchronized ByteBuffer view(int required) throws IOException
+        {
+            if (mapped == null || mapped.capacity() < required)
+            {
+                mapped = log.map(FileChannel.MapMode.READ_ONLY, 0, required);
+            }
+            return mapped.duplicate();
+        }
+
+        void seal() throws IOException
+        {
+            log.force(false);
+            index.force(false);
+        }
+
+        void close() throws IOException
+        {
+            seal();
+            log.close();
+            index.close();
+        }
+
+        long lastWritten() throws IOException
+        {
+            return Files.getLastModifiedTime(logFile).toMillis();
+        }
+
+        // A reader still holding the mapping keeps reading it; the files are gone once it lets go
+        void delete() throws IOException
+        {
+            close();
+            Files.deleteIfExists(logFile);
+            Files.deleteIfExists(indexFile);
+        }
+    }
+}
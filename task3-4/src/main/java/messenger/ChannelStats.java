@@ -0,0 +1,113 @@
+package messenger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Per-channel counters. The send path only adds to striped LongAdders; the current second is folded into a
+// ring of per-second slots by whichever caller first sees the clock move on, so rates over the last
+// 1 s / 1 min / 5 min are a sum over a few slots at read time.
+public class ChannelStats
+{
+    public record Rate(double messagesPerSecond, double bytesPerSecond)
+    {
+    }
+
+    private static final int WINDOW_SECONDS = 300;
+
+    private final LongSupplier clockSeconds;
+    private final LongAdder totalMessages = new LongAdder();
+    private final LongAdder totalBytes = new LongAdder();
+    private final LongAdder pendingMessages = new LongAdder();
+    private final LongAdder pendingBytes = new LongAdder();
+    private final AtomicLong currentSecond;
+    private final AtomicLongArray slotMessages = new AtomicLongArray(WINDOW_SECONDS);
+    private final AtomicLongArray slotBytes = new AtomicLongArray(WINDOW_SECONDS);
+    private final AtomicLongArray slotSeconds = new AtomicLongArray(WINDOW_SECONDS);
+    private final LatencyHistogram fanoutLatency = new LatencyHistogram();
+
+    public ChannelStats()
+    {
+        this(() -> TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()));
+    }
+
+    ChannelStats(LongSupplier clockSeconds)
+    {
+        this.clockSeconds = clockSeconds;
+        this.currentSecond = new AtomicLong(clockSeconds.getAsLong());
+        for (int i = 0; i < WINDOW_SECONDS; i++) slotSeconds.set(i, Long.MIN_VALUE);
+    }
+
+    public void recordMessages(int count, long bytes)
+    {
+        roll(clockSeconds.getAsLong());
+        totalMessages.add(count);
+        totalBytes.add(bytes);
+        pendingMessages.add(count);
+        pendingBytes.add(bytes);
+    }
+
+    public void recordFanout(long nanos)
+    {
+        fanoutLatency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    public long totalMessages()
+    {
+        return totalMessages.sum();
+    }
+
+    public long totalBytes()
+    {
+        return totalBytes.sum();
+    }
+
+    // Average over the last `seconds` whole seconds; the second in progress is not counted yet
+    public Rate rate(int seconds)
+    {
+        long now = clockSeconds.getAsLong();
+        roll(now);
+
+        long messages = 0;
+        long bytes = 0;
+        for (int i = 0; i < WINDOW_SECONDS; i++)
+        {
+            long second = slotSeconds.get(i);
+            if (second >= now - seconds && second < now)
+            {
+                messages += slotMessages.get(i);
+                bytes += slotBytes.get(i);
+            }
+        }
+        return new Rate((double) messages / seconds, (double) bytes / seconds);
+    }
+
+    public long fanoutPercentileMicros(double percentile)
+    {
+        return fanoutLatency.percentile(percentile);
+    }
+
+    public long fanoutMaxMicros()
+    {
+        return fanoutLatency.max();
+    }
+
+    public long fanoutSamples()
+    {
+        return fanoutLatency.count();
+    }
+
+    // A recorder racing the fold may land in the next second; that skew is fine for rates
+    private void roll(long now)
+    {
+        long second = currentSecond.get();
+        if (now <= second || !currentSecond.compareAndSet(second, now)) return;
+
+        int slot = (int) Math.floorMod(second, (long) WINDOW_SECONDS);
+        slotMessages.set(slot, pendingMessages.sumThenReset());
+        slotBytes.set(slot, pendingBytes.sumThenReset());
+        slotSeconds.set(slot, second);
+    }
+}
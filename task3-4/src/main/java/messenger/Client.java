@@ -10,13 +10,19 @@ import javax.swing.text.StyleConstants;
 import javax.swing.text.StyledDocument;
 import java.awt.*;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 public class Client
 {
     private static final Map<String, JTextPane> chatAreas = new ConcurrentHashMap<>();
+    // Chats stay open when their user goes offline, only the button is greyed out
+    private static final Map<String, JButton> userButtons = new ConcurrentHashMap<>();
+    private static final Set<String> onlineUsers = new HashSet<>();
     private static final JPanel userPanel = new JPanel(new GridLayout(0, 1));
     private static final JFrame chatFrame = new JFrame();
     private static final CardLayout chatLayout = new CardLayout();
@@ -26,6 +32,9 @@ public class Client
     private static MessengerServiceGrpc.MessengerServiceBlockingStub blockingStub;
     private static ManagedChannel channel;
     private static String username;
+    private static StreamObserver<Messenger.SessionRequest> session;
+    private static long nextMessageId = 1;
+    private static long presenceVersion;
     private static boolean connected = true;
 
     public static void main(String[] args)
@@ -43,6 +52,7 @@ public class Client
     {
         channel = ManagedChannelBuilder.forAddress("localhost", 9090)
                 .usePlaintext()
+                .keepAliveTime(30, TimeUnit.SECONDS)
                 .build();
         asyncStub = MessengerServiceGrpc.newStub(channel);
         blockingStub = MessengerServiceGrpc.newBlockingStub(channel);
@@ -50,23 +60,43 @@ public class Client
 
     private static void connectToServer()
     {
-        Messenger.ConnectRequest connectRequest = Messenger.ConnectRequest.newBuilder().setUsername(username).build();
-        Messenger.ConnectResponse response = blockingStub.connect(connectRequest);
+        session = startSession();
+        session.onNext(Messenger.SessionRequest.newBuilder()
+                .setOpen(Messenger.SessionOpen.newBuilder().setUsername(username).setAcks(true))
+                .build());
+        // The user list shows every channel, so every announcement is wanted
+        session.onNext(Messenger.SessionRequest.newBuilder()
+                .setWatch(Messenger.SessionWatch.newBuilder().setAll(true))
+                .build());
+        loadChannels();
+    }
 
-        for (String user : response.getUsersList())
+    // Channels created before this client connected are never announced to it
+    private static void loadChannels()
+    {
+        String token = "";
+        do
         {
-            if (!user.equals(username))
+            Messenger.SearchChannelsResponse page = blockingStub.searchChannels(
+                    Messenger.SearchChannelsRequest.newBuilder().setPageToken(token).build());
+            for (Messenger.ChannelInfo info : page.getChannelsList())
             {
-                addUserButton(user);
+                SwingUtilities.invokeLater(() ->
+                {
+                    if (!chatAreas.containsKey(info.getId()))
+                    {
+                        addChannel(info.getId(), info.getId(), info.getCreator(), info.getTagsList());
+                    }
+                });
             }
+            token = page.getNextPageToken();
         }
-
-        startReceivingMessages();
+        while (!token.isEmpty());
     }
 
-    private static void startReceivingMessages()
+    private static StreamObserver<Messenger.SessionRequest> startSession()
     {
-        asyncStub.receiveMessages(Messenger.ReceiveRequest.newBuilder().setUsername(username).build(),
+        return asyncStub.session(
                 new StreamObserver<>()
                 {
                     @Override
@@ -81,6 +111,32 @@ public class Client
                                     ", secret=" + msg.getSecret() +
                                     ", system=" + msg.getSystem());
 
+                            if (msg.getStatus().equals("Opened") || msg.getStatus().equals("Presence"))
+                            {
+                                Messenger.PresenceUpdate update = msg.getPresence();
+                                if (update.getVersion() <= presenceVersion && !update.getSnapshot()) return;
+                                presenceVersion = update.getVersion();
+
+                                if (update.getSnapshot())
+                                {
+                                    onlineUsers.clear();
+                                    onlineUsers.addAll(update.getUsersList());
+                                }
+                                else
+                                {
+                                    onlineUsers.addAll(update.getJoinedList());
+                                    update.getLeftList().forEach(onlineUsers::remove);
+                                }
+                                onlineUsers.remove(username);
+
+                                for (String user : onlineUsers) addUserButton(user);
+                                userButtons.forEach((user, button) ->
+                                        button.setForeground(onlineUsers.contains(user) ? Color.BLACK : Color.GRAY));
+                                return;
+                            }
+
+                            if (msg.getAckId() != 0) return;
+
                             if (msg.getDelete())
                             {
                                 String chatWith = msg.getFrom().equals(username) ? msg.getTo() : msg.getFrom();
@@ -133,6 +189,8 @@ public class Client
                                 {
                                     appendMessage(pane, "[" + msg.getFrom() + "]: " + msg.getContent(), msg.getSecret());
                                 }
+                                // Acked once shown; anything unacked is replayed on the next connect
+                                if (msg.getMessageId() != 0) ack(msg.getMessageId());
                             }
                         });
                     }
@@ -150,6 +208,13 @@ public class Client
                 });
     }
 
+    private static void ack(long messageId)
+    {
+        session.onNext(Messenger.SessionRequest.newBuilder()
+                .setAck(Messenger.SessionAck.newBuilder().setUpTo(messageId))
+                .build());
+    }
+
     private static void addChannel(String id, String name, String creator, List<String> tags)
     {
         JTextPane chatPane = new JTextPane();
@@ -229,7 +294,16 @@ public class Client
 
         Messenger.ChannelStatsResponse response = blockingStub.getChannelStats(request);
 
-        String statsMessage = "Total messages in channel: " + response.getTotalMessages();
+        String statsMessage = "Total messages in channel: " + response.getTotalMessages() +
+                "\nSubscribers: " + response.getSubscribers() +
+                "\nMessages/s (1s / 1m / 5m): " + String.format("%.1f / %.1f / %.1f",
+                        response.getLastSecond().getMessagesPerSecond(),
+                        response.getLastMinute().getMessagesPerSecond(),
+                        response.getLastFiveMinutes().getMessagesPerSecond()) +
+                "\nFan-out p50 / p99: " + response.getFanoutLatency().getP50Micros() + " / "
+                + response.getFanoutLatency().getP99Micros() + " us" +
+                "\nQueued for delivery: " + response.getQueuedMessages() +
+                "\nDropped: " + response.getDroppedMessages();
 
         JOptionPane.showMessageDialog(chatFrame, statsMessage, "Channel Statistics", JOptionPane.INFORMATION_MESSAGE);
     }
@@ -326,7 +400,7 @@ public class Client
         {
             if (connected)
             {
-                blockingStub.disconnect(Messenger.DisconnectRequest.newBuilder().setUsername(username).build());
+                session.onCompleted();
                 channel.shutdownNow();
                 toggleButton.setText("Reconnect");
                 connected = false;
@@ -348,6 +422,7 @@ public class Client
 
         JButton userButton = new JButton(target);
         userPanel.add(userButton);
+        userButtons.put(target, userButton);
 
         JTextPane chatPane = new JTextPane();
         chatPane.setEditable(false);
@@ -368,31 +443,13 @@ public class Client
             if (content.isBlank()) return;
             inputField.setText("");
 
-            Messenger.MessageRequest msg = Messenger.MessageRequest.newBuilder()
-                    .setFrom(username)
-                    .setTo(target)
-                    .setContent(content)
-                    .setSecret(secretBox.isSelected())
-                    .build();
-
-            asyncStub.sendMessage(msg, new StreamObserver<>()
-            {
-                @Override
-                public void onNext(Messenger.SendResponse sendResponse)
-                {
-                }
-
-                @Override
-                public void onError(Throwable throwable)
-                {
-
-                }
-
-                @Override
-                public void onCompleted()
-                {
-                }
-            });
+            session.onNext(Messenger.SessionRequest.newBuilder()
+                    .setSend(Messenger.SessionSend.newBuilder()
+                            .setId(nextMessageId++)
+                            .setTo(target)
+                            .setContent(content)
+                            .setSecret(secretBox.isSelected()))
+                    .build());
 
             appendMessage(chatPane, "[You]: " + content, secretBox.isSelected());
         });
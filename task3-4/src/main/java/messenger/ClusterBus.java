@@ -0,0 +1,333 @@
+package messenger;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import redis.clients.jedis.BinaryJedisPubSub;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Node-to-node transport over Redis pub/sub. Channel messages and broadcasts go to a shared topic every
+// node subscribes to; direct messages go straight to the topic of the node holding the recipient, which
+// is looked up in the "presence" hash. Live members heartbeat into the "nodes" hash.
+public class ClusterBus implements AutoCloseable
+{
+    private static final byte[] SHARED_TOPIC = "messenger:cluster".getBytes(StandardCharsets.UTF_8);
+    private static final String NODE_TOPIC_PREFIX = "messenger:node:";
+    private static final String PRESENCE_KEY = "presence";
+    private static final String NODES_KEY = "nodes";
+    private static final long HEARTBEAT_MILLIS = 1000;
+    private static final long NODE_TIMEOUT_MILLIS = 5000;
+    private static final int DROP_ATTEMPTS = 5;
+    private static final long RESUBSCRIBE_MIN_MILLIS = 100;
+    private static final long RESUBSCRIBE_MAX_MILLIS = 5000;
+
+    private final String host;
+    private final int port;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final byte[] nodeTopic = (NODE_TOPIC_PREFIX + nodeId).getBytes(StandardCharsets.UTF_8);
+    private final JedisPool pool;
+    private final CountDownLatch subscribed = new CountDownLatch(1);
+    private final ScheduledExecutorService heartbeat =
+            Executors.newSingleThreadScheduledExecutor(Threads.daemon("cluster-heartbeat"));
+    private volatile Consumer<Set<String>> membershipListener = members -> { };
+    private volatile Set<String> members = Set.of();
+    private volatile BinaryJedisPubSub subscriber;
+    private volatile boolean listening;
+    private volatile boolean closed;
+
+    public ClusterBus(String host, int port, int connections)
+    {
+        this.host = host;
+        this.port = port;
+
+        JedisPoolConfig config = new JedisPoolConfig();
+        config.setMaxTotal(connections);
+        config.setMaxIdle(connections);
+        config.setJmxEnabled(false);
+        this.pool = new JedisPool(config, host, port);
+    }
+
+    public String nodeId()
+    {
+        return nodeId;
+    }
+
+    // Blocks until both topics are subscribed, so nothing published right after startup is missed
+    public void start(Consumer<Messenger.BusMessage> handler, Consumer<Set<String>> onMembership)
+            throws InterruptedException
+    {
+        membershipListener = onMembership;
+        Threads.daemon("cluster-bus").newThread(() -> listen(handler)).start();
+
+        if (!subscribed.await(10, TimeUnit.SECONDS))
+        {
+            throw new IllegalStateException("Cluster bus did not subscribe");
+        }
+
+        beat();
+        refreshMembers();
+        publish(Messenger.BusMessage.newBuilder().setMembership(true).build());
+        heartbeat.scheduleWithFixedDelay(() ->
+        {
+            try
+            {
+                // A node that cannot hear the bus stops beating, so the others stop routing to it
+                if (listening) beat();
+                refreshMembers();
+            }
+            catch (JedisException e)
+            {
+                Log.warn("Cluster heartbeat failed: " + e.getMessage());
+            }
+        }, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Subscribes again after a lost connection, backing off while Redis stays away. Once both topics are back
+    // the node beats and announces itself, so the others route to it again without waiting for the timeout.
+    private void listen(Consumer<Messenger.BusMessage> handler)
+    {
+        long backoff = RESUBSCRIBE_MIN_MILLIS;
+        while (!closed)
+        {
+            try (Jedis jedis = new Jedis(host, port))
+            {
+                subscriber = subscriber(handler);
+                jedis.subscribe(subscriber, SHARED_TOPIC, nodeTopic);
+            }
+            catch (JedisException e)
+            {
+                if (closed) return;
+                if (listening) backoff = RESUBSCRIBE_MIN_MILLIS;
+                Log.error("Cluster bus subscription lost, retrying in " + backoff + " ms: " + e.getMessage());
+            }
+            listening = false;
+            if (closed) return;
+
+            try
+            {
+                Thread.sleep(backoff);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            backoff = Math.min(backoff * 2, RESUBSCRIBE_MAX_MILLIS);
+        }
+    }
+
+    private BinaryJedisPubSub subscriber(Consumer<Messenger.BusMessage> handler)
+    {
+        return new BinaryJedisPubSub()
+        {
+            @Override
+            public void onSubscribe(byte[] channel, int subscribedChannels)
+            {
+                if (subscribedChannels != 2) return;
+                boolean rejoined = subscribed.getCount() == 0;
+                listening = true;
+                subscribed.countDown();
+                if (rejoined && !closed) heartbeat.execute(ClusterBus.this::rejoin);
+            }
+
+            @Override
+            public void onMessage(byte[] channel, byte[] message)
+            {
+                try
+                {
+                    Messenger.BusMessage msg = Messenger.BusMessage.parseFrom(message);
+                    // Local subscribers already got our own shared-topic publications
+                    if (msg.getOrigin().equals(nodeId) && Arrays.equals(channel, SHARED_TOPIC)) return;
+                    if (msg.getMembership()) refreshMembers();
+                    else handler.accept(msg);
+                }
+                catch (InvalidProtocolBufferException e)
+                {
+                    Log.warn("Skipping corrupt bus message");
+                }
+                catch (RuntimeException e)
+                {
+                    Log.error("Failed to handle bus message: " + e.getMessage());
+                }
+            }
+        };
+    }
+
+    private void rejoin()
+    {
+        try
+        {
+            beat();
+            refreshMembers();
+            publish(Messenger.BusMessage.newBuilder().setMembership(true).build());
+            Log.info("Cluster bus subscription restored");
+        }
+        catch (JedisException e)
+        {
+            Log.warn("Failed to rejoin the cluster: " + e.getMessage());
+        }
+    }
+
+    public Set<String> members()
+    {
+        return members;
+    }
+
+    public void publish(Messenger.BusMessage msg)
+    {
+        publish(SHARED_TOPIC, msg);
+    }
+
+    public void sendTo(String node, Messenger.BusMessage msg)
+    {
+        publish((NODE_TOPIC_PREFIX + node).getBytes(StandardCharsets.UTF_8), msg);
+    }
+
+    public void register(String username)
+    {
+        try (Jedis jedis = pool.getResource())
+        {
+            jedis.hset(PRESENCE_KEY, username, nodeId);
+        }
+    }
+
+    public void unregister(String username)
+    {
+        try (Jedis jedis = pool.getResource())
+        {
+            jedis.hdel(PRESENCE_KEY, username);
+        }
+    }
+
+    public String locate(String username)
+    {
+        try (Jedis jedis = pool.getResource())
+        {
+            return jedis.hget(PRESENCE_KEY, username);
+        }
+    }
+
+    public Set<String> users()
+    {
+        try (Jedis jedis = pool.getResource())
+        {
+            return jedis.hkeys(PRESENCE_KEY);
+        }
+    }
+
+    // Removes presence entries held by nodes outside members and returns the users this call removed, so
+    // only one node reports each of them as gone. WATCH keeps a user who has just reconnected to a live node
+    // from being dropped: the transaction is retried if the hash changed in between.
+    public Set<String> dropUsersOutside(Set<String> members)
+    {
+        try (Jedis jedis = pool.getResource())
+        {
+            for (int attempt = 0; attempt < DROP_ATTEMPTS; attempt++)
+            {
+                jedis.watch(PRESENCE_KEY);
+                List<String> stale = new ArrayList<>();
+                for (Map.Entry<String, String> entry : jedis.hgetAll(PRESENCE_KEY).entrySet())
+                {
+                    if (!members.contains(entry.getValue())) stale.add(entry.getKey());
+                }
+                if (stale.isEmpty())
+                {
+                    jedis.unwatch();
+                    return Set.of();
+                }
+
+                Transaction transaction = jedis.multi();
+                for (String username : stale) transaction.hdel(PRESENCE_KEY, username);
+                List<Object> removed = transaction.exec();
+                if (removed == null) continue;
+
+                Set<String> dropped = new HashSet<>();
+                for (int i = 0; i < stale.size(); i++)
+                {
+                    if ((Long) removed.get(i) > 0) dropped.add(stale.get(i));
+                }
+                return dropped;
+            }
+        }
+        Log.warn("Presence kept changing, stale entries are left for the next membership change");
+        return Set.of();
+    }
+
+    @Override
+    public void close()
+    {
+        closed = true;
+        heartbeat.shutdownNow();
+        try
+        {
+            try (Jedis jedis = pool.getResource())
+            {
+                jedis.hdel(NODES_KEY, nodeId);
+            }
+            publish(Messenger.BusMessage.newBuilder().setMembership(true).build());
+        }
+        catch (JedisException e)
+        {
+            Log.warn("Failed to leave the cluster cleanly: " + e.getMessage());
+        }
+
+        BinaryJedisPubSub current = subscriber;
+        if (current != null && current.isSubscribed()) current.unsubscribe();
+        pool.close();
+    }
+
+    private void beat()
+    {
+        try (Jedis jedis = pool.getResource())
+        {
+            jedis.hset(NODES_KEY, nodeId, Long.toString(System.currentTimeMillis()));
+        }
+    }
+
+    // Members whose heartbeat is older than the timeout are treated as gone until they beat again
+    private synchronized void refreshMembers()
+    {
+        Map<String, String> beats;
+        try (Jedis jedis = pool.getResource())
+        {
+            beats = jedis.hgetAll(NODES_KEY);
+        }
+
+        long now = System.currentTimeMillis();
+        Set<String> alive = new HashSet<>();
+        for (Map.Entry<String, String> entry : beats.entrySet())
+        {
+            if (now - Long.parseLong(entry.getValue()) <= NODE_TIMEOUT_MILLIS) alive.add(entry.getKey());
+        }
+
+        if (!alive.equals(members))
+        {
+            members = Set.copyOf(alive);
+            membershipListener.accept(members);
+        }
+    }
+
+    private void publish(byte[] topic, Messenger.BusMessage msg)
+    {
+        byte[] payload = msg.toBuilder().setOrigin(nodeId).build().toByteArray();
+        try (Jedis jedis = pool.getResource())
+        {
+            jedis.publish(topic, payload);
+        }
+    }
+}
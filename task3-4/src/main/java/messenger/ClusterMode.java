@@ -0,0 +1,11 @@
+package messenger;
+
+public enum ClusterMode
+{
+    // Single node, no bus
+    NONE,
+    // Every channel message goes to every node
+    BROADCAST,
+    // Each channel has an owning node picked by consistent hashing; only nodes with subscribers get its messages
+    SHARDED
+}
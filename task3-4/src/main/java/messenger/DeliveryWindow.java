@@ -0,0 +1,87 @@
+package messenger;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Direct messages handed to a session that acknowledges them, kept until the client acks. Ids are
+// per session and acks are cumulative. Whatever is still here when the session ends goes back to the
+// offline inbox, so a message survives a dropped stream or a client that died before reading it.
+public class DeliveryWindow
+{
+    public record Unacked(Messenger.MessageResponse message, long deliveredAt)
+    {
+    }
+
+    private final int limit;
+    private final Map<Long, Unacked> unacked = new LinkedHashMap<>();
+    private long lastId;
+    private boolean closed;
+
+    public DeliveryWindow(int limit)
+    {
+        this.limit = limit;
+    }
+
+    // Numbering and offering happen under one lock, so ids reach the stream in order and an ack never
+    // covers a message still queued behind it. False if the window is full or the stream refused it.
+    public boolean deliver(Messenger.MessageResponse msg, OutboundQueue queue)
+    {
+        return offer(msg, queue, limit);
+    }
+
+    // Inbox replay is not held to the limit: it is bounded by the inbox, and refusing it would only put
+    // the message back where it came from
+    public boolean replay(Messenger.MessageResponse msg, OutboundQueue queue)
+    {
+        return offer(msg, queue, Integer.MAX_VALUE);
+    }
+
+    private synchronized boolean offer(Messenger.MessageResponse msg, OutboundQueue queue, int max)
+    {
+        if (closed || unacked.size() >= max) return false;
+
+        long id = ++lastId;
+        Messenger.MessageResponse numbered = msg.toBuilder().setMessageId(id).build();
+        // Tracked before the offer: a spill during the offer forgets it again
+        unacked.put(id, new Unacked(numbered, System.currentTimeMillis()));
+        if (queue.offer(numbered)) return true;
+
+        unacked.remove(id);
+        return false;
+    }
+
+    public synchronized int ack(long upTo)
+    {
+        int acked = 0;
+        Iterator<Long> ids = unacked.keySet().iterator();
+        while (ids.hasNext() && ids.next() <= upTo)
+        {
+            ids.remove();
+            acked++;
+        }
+        return acked;
+    }
+
+    // The message was persisted some other way (spilled or dropped on overflow); false if it was not here
+    public synchronized boolean forget(long id)
+    {
+        return unacked.remove(id) != null;
+    }
+
+    public synchronized int size()
+    {
+        return unacked.size();
+    }
+
+    // Everything not acked, oldest first; later deliveries are refused
+    public synchronized List<Unacked> close()
+    {
+        closed = true;
+        List<Unacked> rest = new ArrayList<>(unacked.values());
+        unacked.clear();
+        return rest;
+    }
+}
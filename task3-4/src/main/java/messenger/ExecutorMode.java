@@ -0,0 +1,11 @@
+package messenger;
+
+public enum ExecutorMode
+{
+    // Fixed pool of workerCount platform threads for every call
+    FIXED,
+    // One virtual thread per call; blocking Redis I/O parks the virtual thread instead of a worker
+    VIRTUAL,
+    // Non-blocking calls run on the transport thread, only calls that touch Redis go to a fixed pool
+    DIRECT
+}
@@ -0,0 +1,303 @@
+package messenger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ExpiryWheel implements AutoCloseable
+{
+    private static final int LEVELS = 3;
+
+    public final class Timeout
+    {
+        private final OutboundQueue target;
+        private final Messenger.MessageResponse signal;
+        private final long deadlineTick;
+        private volatile boolean cancelled;
+
+        private Timeout prev;
+        private Timeout next;
+        private Bucket bucket;
+
+        private Timeout(OutboundQueue target, Messenger.MessageResponse signal, long deadlineTick)
+        {
+            this.target = target;
+            this.signal = signal;
+            this.deadlineTick = deadlineTick;
+        }
+
+        public void cancel()
+        {
+            if (!cancelled)
+            {
+                cancelled = true;
+                cancelledTimeouts.add(this);
+            }
+        }
+    }
+
+    private static final class Bucket
+    {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout)
+        {
+            timeout.bucket = this;
+            timeout.prev = tail;
+            timeout.next = null;
+            if (tail == null) head = timeout;
+            else tail.next = timeout;
+            tail = timeout;
+        }
+
+        void remove(Timeout timeout)
+        {
+            if (timeout.prev == null) head = timeout.next;
+            else timeout.prev.next = timeout.next;
+            if (timeout.next == null) tail = timeout.prev;
+            else timeout.next.prev = timeout.prev;
+            timeout.prev = timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        Timeout clear()
+        {
+            Timeout first = head;
+            head = tail = null;
+            return first;
+        }
+    }
+
+    private final long tickNanos;
+    private final int wheelSize;
+    private final long[] levelSpan;
+    private final Bucket[][] levels;
+    private final long startNanos;
+    private long currentTick;
+
+    private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+    private final Queue<OutboundQueue> cancelledTargets = new ConcurrentLinkedQueue<>();
+    private final Map<OutboundQueue, Set<Timeout>> timeoutsByTarget = new HashMap<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    public ExpiryWheel(long tick, TimeUnit unit, int wheelSize)
+    {
+        this.tickNanos = unit.toNanos(tick);
+        this.wheelSize = wheelSize;
+        this.levelSpan = new long[LEVELS + 1];
+        this.levels = new Bucket[LEVELS][wheelSize];
+
+        levelSpan[0] = 1;
+        for (int level = 0; level < LEVELS; level++)
+        {
+            levelSpan[level + 1] = levelSpan[level] * wheelSize;
+            for (int i = 0; i < wheelSize; i++) levels[level][i] = new Bucket();
+        }
+
+        this.startNanos = System.nanoTime();
+        this.worker = Threads.daemon("expiry-wheel").newThread(this::run);
+        this.worker.start();
+    }
+
+    public Timeout schedule(OutboundQueue target, Messenger.MessageResponse signal, long delay, TimeUnit unit)
+    {
+        // Round up: tick k runs no earlier than startNanos + k * tickNanos, so the signal never fires early
+        long deadlineNanos = System.nanoTime() - startNanos + unit.toNanos(delay);
+        long deadlineTick = Math.max(1, (deadlineNanos + tickNanos - 1) / tickNanos);
+        Timeout timeout = new Timeout(target, signal, deadlineTick);
+        pending.incrementAndGet();
+        pendingTimeouts.add(timeout);
+        return timeout;
+    }
+
+    public void cancelAll(OutboundQueue target)
+    {
+        cancelledTargets.add(target);
+    }
+
+    public int pendingCount()
+    {
+        return pending.get();
+    }
+
+    @Override
+    public void close()
+    {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void run()
+    {
+        while (running)
+        {
+            long nextTickNanos = startNanos + (currentTick + 1) * tickNanos;
+            long sleepNanos = nextTickNanos - System.nanoTime();
+            if (sleepNanos > 0)
+            {
+                try
+                {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                }
+                catch (InterruptedException e)
+                {
+                    if (!running) return;
+                }
+                continue;
+            }
+
+            transferPending();
+            processCancellations();
+
+            Map<OutboundQueue, List<Messenger.MessageResponse>> expired = new LinkedHashMap<>();
+            long nowTick = (System.nanoTime() - startNanos) / tickNanos;
+            while (currentTick < nowTick)
+            {
+                advance(expired);
+            }
+            deliver(expired);
+        }
+    }
+
+    private void transferPending()
+    {
+        Timeout timeout;
+        while ((timeout = pendingTimeouts.poll()) != null)
+        {
+            if (timeout.cancelled)
+            {
+                pending.decrementAndGet();
+                continue;
+            }
+            timeoutsByTarget.computeIfAbsent(timeout.target, k -> new HashSet<>()).add(timeout);
+            place(timeout, null);
+        }
+    }
+
+    private void processCancellations()
+    {
+        Timeout timeout;
+        while ((timeout = cancelledTimeouts.poll()) != null)
+        {
+            unlink(timeout);
+        }
+
+        OutboundQueue target;
+        while ((target = cancelledTargets.poll()) != null)
+        {
+            Set<Timeout> timeouts = timeoutsByTarget.get(target);
+            if (timeouts == null) continue;
+            for (Timeout t : new ArrayList<>(timeouts))
+            {
+                t.cancelled = true;
+                unlink(t);
+            }
+        }
+    }
+
+    private void unlink(Timeout timeout)
+    {
+        if (timeout.bucket == null) return;
+        timeout.bucket.remove(timeout);
+        forget(timeout);
+    }
+
+    private void forget(Timeout timeout)
+    {
+        pending.decrementAndGet();
+        Set<Timeout> timeouts = timeoutsByTarget.get(timeout.target);
+        if (timeouts != null && timeouts.remove(timeout) && timeouts.isEmpty())
+        {
+            timeoutsByTarget.remove(timeout.target);
+        }
+    }
+
+    private void advance(Map<OutboundQueue, List<Messenger.MessageResponse>> expired)
+    {
+        currentTick++;
+
+        // Higher levels cascade first, so re-placed timeouts can still land in the bucket expiring right now
+        for (int level = LEVELS - 1; level > 0; level--)
+        {
+            if (currentTick % levelSpan[level] == 0)
+            {
+                Bucket bucket = levels[level][(int) ((currentTick / levelSpan[level]) % wheelSize)];
+                Timeout timeout = bucket.clear();
+                while (timeout != null)
+                {
+                    Timeout next = timeout.next;
+                    timeout.prev = timeout.next = null;
+                    timeout.bucket = null;
+                    place(timeout, expired);
+                    timeout = next;
+                }
+            }
+        }
+
+        Timeout timeout = levels[0][(int) (currentTick % wheelSize)].clear();
+        while (timeout != null)
+        {
+            Timeout next = timeout.next;
+            timeout.prev = timeout.next = null;
+            timeout.bucket = null;
+            expire(timeout, expired);
+            timeout = next;
+        }
+    }
+
+    private void place(Timeout timeout, Map<OutboundQueue, List<Messenger.MessageResponse>> expired)
+    {
+        if (timeout.deadlineTick <= currentTick)
+        {
+            if (expired != null) expire(timeout, expired);
+            else levels[0][(int) ((currentTick + 1) % wheelSize)].add(timeout);
+            return;
+        }
+
+        for (int level = 0; level < LEVELS; level++)
+        {
+            long slot = timeout.deadlineTick / levelSpan[level];
+            long currentSlot = currentTick / levelSpan[level];
+            if (slot - currentSlot < wheelSize)
+            {
+                levels[level][(int) (slot % wheelSize)].add(timeout);
+                return;
+            }
+        }
+
+        // Beyond the wheel's horizon: park in the farthest top-level bucket and re-place on cascade
+        long farthest = currentTick / levelSpan[LEVELS - 1] + wheelSize - 1;
+        levels[LEVELS - 1][(int) (farthest % wheelSize)].add(timeout);
+    }
+
+    private void expire(Timeout timeout, Map<OutboundQueue, List<Messenger.MessageResponse>> expired)
+    {
+        forget(timeout);
+        if (timeout.cancelled || timeout.target.isClosed()) return;
+        expired.computeIfAbsent(timeout.target, k -> new ArrayList<>()).add(timeout.signal);
+    }
+
+    private void deliver(Map<OutboundQueue, List<Messenger.MessageResponse>> expired)
+    {
+        for (Map.Entry<OutboundQueue, List<Messenger.MessageResponse>> entry : expired.entrySet())
+        {
+            OutboundQueue target = entry.getKey();
+            for (Messenger.MessageResponse signal : entry.getValue())
+            {
+                target.offer(signal);
+            }
+        }
+    }
+}
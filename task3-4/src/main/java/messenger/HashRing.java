@@ -0,0 +1,55 @@
+package messenger;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+// Consistent-hash ring with virtual nodes: when a node joins or leaves only the keys next to its points move.
+// Lookups read an immutable snapshot, so updates never block routing.
+public class HashRing
+{
+    private static final int VIRTUAL_NODES = 128;
+
+    private volatile NavigableMap<Long, String> points = new TreeMap<>();
+
+    public void update(Collection<String> members)
+    {
+        NavigableMap<Long, String> next = new TreeMap<>();
+        for (String node : members)
+        {
+            for (int i = 0; i < VIRTUAL_NODES; i++)
+            {
+                next.put(hash(node + "#" + i), node);
+            }
+        }
+        points = next;
+    }
+
+    public String owner(String key)
+    {
+        NavigableMap<Long, String> current = points;
+        if (current.isEmpty()) return null;
+
+        Map.Entry<Long, String> entry = current.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : current.firstEntry().getValue();
+    }
+
+    // FNV-1a over the UTF-8 bytes, finished with the MurmurHash3 mixer to spread nearby keys around the ring
+    static long hash(String key)
+    {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8))
+        {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
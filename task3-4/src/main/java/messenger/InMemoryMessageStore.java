@@ -0,0 +1,150 @@
+package messenger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Keys are spread over a fixed set of stripes, each guarded by its own monitor, so writers to different
+// inboxes rarely meet. Expired secrets are skipped on drain and swept in the background for users who
+// never come back.
+public class InMemoryMessageStore implements MessageStore
+{
+    private static final int STRIPES = 64;
+    private static final long SWEEP_SECONDS = 5;
+
+    private record Entry(long expiresAt, StoredMessage message)
+    {
+    }
+
+    private static final class Stripe
+    {
+        final Map<String, List<Entry>> inboxes = new HashMap<>();
+        final Map<String, List<byte[]>> spilled = new HashMap<>();
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final Map<String, ChannelDirectory.ChannelInfo> channels = new ConcurrentHashMap<>();
+    private final AtomicLong storedMessages = new AtomicLong();
+    private final ScheduledExecutorService sweeper =
+            Executors.newSingleThreadScheduledExecutor(Threads.daemon("memory-store-sweep"));
+
+    public InMemoryMessageStore()
+    {
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Stripe();
+        sweeper.scheduleWithFixedDelay(this::sweep, SWEEP_SECONDS, SWEEP_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void storeMessage(String from, String to, String content, boolean secret, int ttlSeconds)
+    {
+        long expiresAt = secret ? System.currentTimeMillis() + ttlSeconds * 1000L : 0;
+        Entry entry = new Entry(expiresAt, new StoredMessage(from, content, secret));
+        Stripe stripe = stripe(to);
+        synchronized (stripe)
+        {
+            stripe.inboxes.computeIfAbsent(to, k -> new ArrayList<>()).add(entry);
+        }
+        storedMessages.incrementAndGet();
+    }
+
+    @Override
+    public List<StoredMessage> drainMessages(String username)
+    {
+        List<Entry> inbox;
+        Stripe stripe = stripe(username);
+        synchronized (stripe)
+        {
+            inbox = stripe.inboxes.remove(username);
+        }
+        if (inbox == null) return List.of();
+        storedMessages.addAndGet(-inbox.size());
+
+        long now = System.currentTimeMillis();
+        List<StoredMessage> messages = new ArrayList<>(inbox.size());
+        for (Entry entry : inbox)
+        {
+            if (entry.expiresAt() == 0 || entry.expiresAt() > now) messages.add(entry.message());
+        }
+        return messages;
+    }
+
+    @Override
+    public void saveChannel(String id, String creator, List<String> tags)
+    {
+        channels.put(id, new ChannelDirectory.ChannelInfo(id, creator, List.copyOf(tags)));
+    }
+
+    @Override
+    public List<ChannelDirectory.ChannelInfo> loadChannels()
+    {
+        return new ArrayList<>(channels.values());
+    }
+
+    @Override
+    public void spill(String key, byte[] message)
+    {
+        Stripe stripe = stripe(key);
+        synchronized (stripe)
+        {
+            stripe.spilled.computeIfAbsent(key, k -> new ArrayList<>()).add(message);
+        }
+    }
+
+    @Override
+    public List<byte[]> takeSpilled(String key)
+    {
+        Stripe stripe = stripe(key);
+        synchronized (stripe)
+        {
+            List<byte[]> spilled = stripe.spilled.remove(key);
+            return spilled == null ? List.of() : spilled;
+        }
+    }
+
+    @Override
+    public void registerMetrics(Metrics metrics)
+    {
+        metrics.gauge("messenger_store_messages", "Offline messages held in memory", storedMessages::get);
+    }
+
+    @Override
+    public void close()
+    {
+        sweeper.shutdownNow();
+    }
+
+    private Stripe stripe(String key)
+    {
+        int hash = key.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    private void sweep()
+    {
+        long now = System.currentTimeMillis();
+        for (Stripe stripe : stripes)
+        {
+            long removed = 0;
+            synchronized (stripe)
+            {
+                Iterator<List<Entry>> inboxes = stripe.inboxes.values().iterator();
+                while (inboxes.hasNext())
+                {
+                    List<Entry> inbox = inboxes.next();
+                    int before = inbox.size();
+                    inbox.removeIf(entry -> entry.expiresAt() != 0 && entry.expiresAt() <= now);
+                    removed += before - inbox.size();
+                    if (inbox.isEmpty()) inboxes.remove();
+                }
+            }
+            if (removed > 0) storedMessages.addAndGet(-removed);
+        }
+    }
+}
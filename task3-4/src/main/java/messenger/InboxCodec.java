@@ -0,0 +1,148 @@
+package messenger;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Inbox list elements: one tag byte, then an InboxEntry protobuf, deflated when it is large enough for that
+// to pay off. Entries written before the tag byte existed start with an ASCII digit and are still read.
+// A reference element holds only the name of the key where the entry itself is kept.
+final class InboxCodec
+{
+    private static final byte PLAIN = 1;
+    private static final byte DEFLATED = 2;
+    private static final byte REFERENCE = 3;
+
+    private InboxCodec()
+    {
+    }
+
+    // compressAbove < 0 turns compression off
+    static byte[] encode(long expiresAt, String from, String content, boolean secret, int compressAbove)
+    {
+        byte[] entry = Messenger.InboxEntry.newBuilder()
+                .setExpiresAt(expiresAt)
+                .setFrom(from)
+                .setContent(content)
+                .setSecret(secret)
+                .build()
+                .toByteArray();
+
+        if (compressAbove >= 0 && entry.length > compressAbove)
+        {
+            byte[] deflated = deflate(entry);
+            // Already-compressed content does not shrink; keeping it plain saves the inflate on drain
+            if (deflated.length < entry.length) return deflated;
+        }
+
+        byte[] plain = new byte[entry.length + 1];
+        plain[0] = PLAIN;
+        System.arraycopy(entry, 0, plain, 1, entry.length);
+        return plain;
+    }
+
+    static byte[] reference(byte[] key)
+    {
+        byte[] element = new byte[key.length + 1];
+        element[0] = REFERENCE;
+        System.arraycopy(key, 0, element, 1, key.length);
+        return element;
+    }
+
+    // The key a reference element points to; null for an element holding the entry itself
+    static byte[] referencedKey(byte[] element)
+    {
+        if (element.length == 0 || element[0] != REFERENCE) return null;
+        byte[] key = new byte[element.length - 1];
+        System.arraycopy(element, 1, key, 0, key.length);
+        return key;
+    }
+
+    // Null for an expired or unreadable entry
+    static MessageStore.StoredMessage decode(byte[] bytes, long now)
+    {
+        if (bytes.length == 0) return null;
+        try
+        {
+            Messenger.InboxEntry entry = switch (bytes[0])
+            {
+                case PLAIN -> Messenger.InboxEntry.parser().parseFrom(bytes, 1, bytes.length - 1);
+                case DEFLATED -> Messenger.InboxEntry.parseFrom(inflate(bytes));
+                default -> legacy(new String(bytes, StandardCharsets.UTF_8));
+            };
+            if (entry.getExpiresAt() != 0 && entry.getExpiresAt() <= now) return null;
+            return new MessageStore.StoredMessage(entry.getFrom(), entry.getContent(), entry.getSecret());
+        }
+        catch (InvalidProtocolBufferException | DataFormatException | RuntimeException e)
+        {
+            Log.warn("Skipping corrupt inbox entry: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // expiresAt|secret|fromLength|from+content
+    private static Messenger.InboxEntry legacy(String entry)
+    {
+        int first = entry.indexOf('|');
+        int second = entry.indexOf('|', first + 1);
+        int third = entry.indexOf('|', second + 1);
+        int fromLength = Integer.parseInt(entry.substring(second + 1, third));
+        return Messenger.InboxEntry.newBuilder()
+                .setExpiresAt(Long.parseLong(entry.substring(0, first)))
+                .setSecret(entry.charAt(first + 1) == '1')
+                .setFrom(entry.substring(third + 1, third + 1 + fromLength))
+                .setContent(entry.substring(third + 1 + fromLength))
+                .build();
+    }
+
+    // tag, 4-byte original length, raw deflate stream
+    private static byte[] deflate(byte[] input)
+    {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try
+        {
+            deflater.setInput(input);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2 + 16);
+            out.write(DEFLATED);
+            out.write(input.length >>> 24);
+            out.write(input.length >>> 16);
+            out.write(input.length >>> 8);
+            out.write(input.length);
+            byte[] chunk = new byte[Math.min(input.length, 8192)];
+            while (!deflater.finished()) out.write(chunk, 0, deflater.deflate(chunk));
+            return out.toByteArray();
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] bytes) throws DataFormatException
+    {
+        int length = ((bytes[1] & 0xff) << 24) | ((bytes[2] & 0xff) << 16) | ((bytes[3] & 0xff) << 8) | (bytes[4] & 0xff);
+        Inflater inflater = new Inflater(true);
+        try
+        {
+            inflater.setInput(bytes, 5, bytes.length - 5);
+            byte[] out = new byte[length];
+            int read = 0;
+            while (read < length && !inflater.finished())
+            {
+                int n = inflater.inflate(out, read, length - read);
+                if (n == 0 && inflater.needsInput()) throw new DataFormatException("Truncated inbox entry");
+                read += n;
+            }
+            return out;
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+}
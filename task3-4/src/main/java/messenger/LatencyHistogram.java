@@ -0,0 +1,78 @@
+package messenger;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Log-linear buckets: exact below 16 us, then 8 buckets per power of two (about 6% error)
+final class LatencyHistogram
+{
+    private static final int LINEAR = 16;
+    private static final int SUB_BUCKETS = 8;
+    private static final int MAX_EXPONENT = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(LINEAR + (MAX_EXPONENT - 3) * SUB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long micros)
+    {
+        micros = Math.max(0, micros);
+        buckets.incrementAndGet(index(micros));
+        count.increment();
+        sum.add(micros);
+        if (micros > max.get()) max.accumulateAndGet(micros, Math::max);
+    }
+
+    long count()
+    {
+        return count.sum();
+    }
+
+    long sumMicros()
+    {
+        return sum.sum();
+    }
+
+    long max()
+    {
+        return max.get();
+    }
+
+    long percentile(double percentile)
+    {
+        long total = 0;
+        for (int i = 0; i < buckets.length(); i++) total += buckets.get(i);
+        if (total == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < buckets.length(); i++)
+        {
+            seen += buckets.get(i);
+            if (seen >= rank) return Math.min(value(i), max.get());
+        }
+        return max.get();
+    }
+
+    private static int index(long micros)
+    {
+        if (micros < LINEAR) return (int) micros;
+
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT);
+        int sub = (int) (micros >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    // Midpoint of the bucket
+    private static long value(int index)
+    {
+        if (index < LINEAR) return index;
+
+        int exponent = (index - LINEAR) / SUB_BUCKETS + 4;
+        int sub = (index - LINEAR) % SUB_BUCKETS;
+        long width = 1L << (exponent - 3);
+        return (SUB_BUCKETS + sub) * width + width / 2;
+    }
+}
@@ -0,0 +1,103 @@
+package messenger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// Server log. Callers only format and enqueue; one daemon thread does the console writes, so a slow terminal
+// never blocks a handler. When the buffer is full, lines are dropped and counted rather than waited for.
+final class Log
+{
+    enum Level
+    {
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR
+    }
+
+    private record Entry(Level level, String message)
+    {
+    }
+
+    private static final Level LEVEL = Level.valueOf(System.getProperty("messenger.log.level", "INFO").toUpperCase());
+    private static final BlockingQueue<Entry> pending = new ArrayBlockingQueue<>(
+            Integer.getInteger("messenger.log.bufferLimit", 8192));
+    private static final LongAdder dropped = new LongAdder();
+
+    static
+    {
+        Threads.daemon("log-writer").newThread(Log::writeLoop).start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private Log()
+    {
+    }
+
+    static boolean enabled(Level level)
+    {
+        return level.compareTo(LEVEL) >= 0;
+    }
+
+    static void debug(Supplier<String> message)
+    {
+        if (enabled(Level.DEBUG)) enqueue(Level.DEBUG, message.get());
+    }
+
+    static void info(String message)
+    {
+        if (enabled(Level.INFO)) enqueue(Level.INFO, message);
+    }
+
+    static void warn(String message)
+    {
+        if (enabled(Level.WARN)) enqueue(Level.WARN, message);
+    }
+
+    static void error(String message)
+    {
+        if (enabled(Level.ERROR)) enqueue(Level.ERROR, message);
+    }
+
+    static long dropped()
+    {
+        return dropped.sum();
+    }
+
+    private static void enqueue(Level level, String message)
+    {
+        if (!pending.offer(new Entry(level, message))) dropped.increment();
+    }
+
+    private static void writeLoop()
+    {
+        try
+        {
+            while (true) write(pending.take());
+        }
+        catch (InterruptedException ignored)
+        {
+        }
+    }
+
+    private static void flush()
+    {
+        List<Entry> rest = new ArrayList<>();
+        pending.drainTo(rest);
+        for (Entry entry : rest) write(entry);
+    }
+
+    private static void write(Entry entry)
+    {
+        switch (entry.level())
+        {
+            case DEBUG -> System.out.println("[DEBUG SERVER] " + entry.message());
+            case INFO -> System.out.println("[SERVER] " + entry.message());
+            default -> System.err.println("[SERVER] " + entry.message());
+        }
+    }
+}
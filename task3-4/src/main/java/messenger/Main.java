@@ -1,170 +1,891 @@
 package messenger;
 
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.sun.net.httpserver.HttpServer;
+import io.grpc.BindableService;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallExecutorSupplier;
+import io.grpc.ServerInterceptors;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
 import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.ServerCalls;
 import io.grpc.stub.StreamObserver;
-import redis.clients.jedis.Jedis;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
 public class Main
 {
-    private static final Map<String, StreamObserver<Messenger.MessageResponse>> clients = new ConcurrentHashMap<>();
-    private static final Set<String> connectedUsers = ConcurrentHashMap.newKeySet();
     private static final int SECRET_MESSAGE_TTL = 10;
+    private static final int CHANNEL_BATCH_LIMIT = 64;
+    private static final int STREAM_BUFFER_LIMIT = Integer.getInteger("messenger.stream.bufferLimit", 1024);
+    // Unacked direct messages per acking session; once full, further messages go to the offline inbox
+    private static final int DELIVERY_WINDOW = Integer.getInteger("messenger.delivery.window", 256);
+    private static final OutboundQueue.OverflowPolicy OVERFLOW_POLICY = OutboundQueue.OverflowPolicy.valueOf(
+            System.getProperty("messenger.stream.overflowPolicy", "DROP_OLDEST"));
 
-    private static final Jedis redis = new Jedis("localhost", 6379);
-    private static final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-    private static final Map<String, String> channels = new ConcurrentHashMap<>();
-    private static final Map<String, AtomicInteger> channelMessageCounts = new ConcurrentHashMap<>();
+    private static final String REDIS_HOST = System.getProperty("messenger.redis.host", "localhost");
+    private static final int REDIS_PORT = Integer.getInteger("messenger.redis.port", 6379);
+    private static final int PORT = Integer.getInteger("messenger.port", 9090);
+    private static final ClusterMode CLUSTER = ClusterMode.valueOf(
+            System.getProperty("messenger.cluster", "NONE").toUpperCase());
+    private static final StoreBackend STORE = StoreBackend.valueOf(
+            System.getProperty("messenger.store", "REDIS").toUpperCase());
+    // Offline messages go through a write-behind stage: a batch is written at batchSize messages or flushMs
+    // after its first message, whichever comes first
+    private static final boolean STORE_WRITE_BEHIND = Boolean.parseBoolean(
+            System.getProperty("messenger.store.writeBehind", "true"));
+    private static final int STORE_BATCH_SIZE = Integer.getInteger("messenger.store.batchSize", 256);
+    private static final long STORE_FLUSH_MILLIS = Long.getLong("messenger.store.flushMs", 5);
+    private static final int STORE_QUEUE_LIMIT = Integer.getInteger("messenger.store.queueLimit", 65536);
+    // Redis inbox entries above this many bytes are deflated; -1 turns compression off
+    private static final int STORE_COMPRESS_ABOVE = Integer.getInteger("messenger.store.compressAbove", 256);
+    // SPILL keeps this many of a subscriber's newest overflowed channel messages, for this long after the last
+    private static final int STORE_SPILL_LIMIT = Integer.getInteger("messenger.store.spillLimit", 10_000);
+    private static final int STORE_SPILL_TTL_SECONDS = Integer.getInteger("messenger.store.spillTtlSeconds", 86_400);
+    // Channel messages are logged to disk for start_offset replay only when this is on
+    private static final boolean HISTORY_ENABLED = Boolean.getBoolean("messenger.history.enabled");
+    private static final Path HISTORY_DIR = Path.of(System.getProperty("messenger.history.dir", "channel-log"));
+    private static final long HISTORY_SEGMENT_BYTES = Long.getLong("messenger.history.segmentBytes", 64L << 20);
+    // Per channel; 0 keeps segments regardless of size or age
+    private static final long HISTORY_RETENTION_BYTES = Long.getLong("messenger.history.retentionBytes", 1L << 30);
+    private static final long HISTORY_RETENTION_HOURS = Long.getLong("messenger.history.retentionHours", 168);
+    // Prometheus endpoint on loopback; -1 turns it off, 0 picks a free port
+    private static final int METRICS_PORT = Integer.getInteger("messenger.metrics.port", -1);
+    private static final long PRESENCE_WINDOW_MILLIS = Long.getLong("messenger.presence.windowMs", 100);
+    private static final int PRESENCE_LOG_SIZE = 1024;
+    private static final long INBOX_RECHECK_MARGIN_MILLIS = 500;
+    // Transport: pings find connections that died without a FIN, which then cancel their streams
+    private static final long KEEPALIVE_SECONDS = Long.getLong("messenger.keepalive.timeSeconds", 30);
+    private static final long KEEPALIVE_TIMEOUT_SECONDS = Long.getLong("messenger.keepalive.timeoutSeconds", 10);
+    private static final long CONNECTION_IDLE_SECONDS = Long.getLong("messenger.connection.maxIdleSeconds", 600);
+    // Sessions whose stream closed without a cancel, and Connects never followed by a stream
+    private static final long REAPER_INTERVAL_SECONDS = Long.getLong("messenger.reaper.intervalSeconds", 30);
+    private static final long REAPER_IDLE_SECONDS = Long.getLong("messenger.reaper.idleSeconds", 300);
+    private static final int SEARCH_PAGE_SIZE = 50;
+    private static final int SEARCH_PAGE_LIMIT = 500;
+    private static final String CHANNEL_PREFIX = "CHANNEL:";
 
-    private static final Map<String, Set<StreamObserver<Messenger.MessageResponse>>> channelSubscribers = new ConcurrentHashMap<>();
+    // Shared by every server in the JVM: both only deal in queues, not in routing state
+    private static final ExpiryWheel expiry = new ExpiryWheel(100, TimeUnit.MILLISECONDS, 64);
+    private static final ExecutorService deliveryPool = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), Threads.daemon("stream-delivery"));
+
+    // Calls that may wait on Redis; everything else only touches in-memory state and queues
+    private static final Set<String> BLOCKING_METHODS = Set.of(
+            MessengerServiceGrpc.getSendMessageMethod().getFullMethodName(),
+            MessengerServiceGrpc.getReceiveMessagesMethod().getFullMethodName(),
+            MessengerServiceGrpc.getReceiveChannelMessagesMethod().getFullMethodName(),
+            MessengerServiceGrpc.getCreateChannelMethod().getFullMethodName(),
+            MessengerServiceGrpc.getSessionMethod().getFullMethodName(),
+            MessengerServiceGrpc.getDisconnectMethod().getFullMethodName()
+    );
 
     public static void main(String[] args) throws IOException, InterruptedException
     {
         int workerCount = args.length > 0 ? Integer.parseInt(args[0]) : 1;
-        Server server = startServer(workerCount);
+        ExecutorMode mode = args.length > 1 ? ExecutorMode.valueOf(args[1].toUpperCase()) : ExecutorMode.FIXED;
+        Server server = startServer(workerCount, mode);
         server.awaitTermination();
     }
 
     public static Server startServer(int workerCount) throws IOException, InterruptedException
     {
-        Server server = ServerBuilder.forPort(9090)
-                .executor(Executors.newFixedThreadPool(workerCount))
-                .addService(new MessengerServiceImpl())
-                .build();
+        return startServer(workerCount, ExecutorMode.FIXED);
+    }
 
+    public static Server startServer(int workerCount, ExecutorMode mode) throws IOException, InterruptedException
+    {
+        return startServer(PORT, workerCount, mode, CLUSTER);
+    }
+
+    public static Server startServer(int port, int workerCount, ExecutorMode mode, ClusterMode clusterMode)
+            throws IOException, InterruptedException
+    {
+        return startServer(port, workerCount, mode, clusterMode, STORE);
+    }
+
+    private static MessageStore migrated(RedisMessageStore store)
+    {
+        int moved = store.migrateLegacyMessages();
+        if (moved > 0) Log.info("Moved " + moved + " offline message(s) of the old format into inboxes");
+        return store;
+    }
+
+    // In cluster mode the node joins the Redis bus and keeps its channel history in its own subdirectory
+    public static Server startServer(int port, int workerCount, ExecutorMode mode, ClusterMode clusterMode,
+                                     StoreBackend storeBackend) throws IOException, InterruptedException
+    {
+        boolean cluster = clusterMode != ClusterMode.NONE;
+        // Handlers, fan-out dispatchers and delivery threads (spills) all borrow connections
+        int connections = workerCount + Runtime.getRuntime().availableProcessors();
+        MessageStore store = storeBackend == StoreBackend.MEMORY ? new InMemoryMessageStore()
+                : migrated(new RedisMessageStore(REDIS_HOST, REDIS_PORT, connections, STORE_COMPRESS_ABOVE,
+                        STORE_SPILL_LIMIT, STORE_SPILL_TTL_SECONDS));
+        if (cluster && storeBackend == StoreBackend.MEMORY)
+        {
+            Log.warn("In-memory store in cluster mode: offline messages stay on the node that accepted them");
+        }
+        ClusterBus bus = cluster ? new ClusterBus(REDIS_HOST, REDIS_PORT, connections) : null;
+        MessengerServiceImpl service = new MessengerServiceImpl(store,
+                cluster ? HISTORY_DIR.resolve("node-" + port) : HISTORY_DIR, bus, clusterMode);
+        if (bus != null) bus.start(service::onBusMessage, service::onMembership);
+
+        MetricsInterceptor calls = new MetricsInterceptor();
+        Metrics metrics = new Metrics();
+        metrics.register(calls);
+        service.registerMetrics(metrics);
+
+        ServerBuilder<?> builder = ServerBuilder.forPort(port)
+                .addService(ServerInterceptors.intercept(service, calls))
+                .keepAliveTime(KEEPALIVE_SECONDS, TimeUnit.SECONDS)
+                .keepAliveTimeout(KEEPALIVE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .permitKeepAliveTime(Math.min(KEEPALIVE_SECONDS, 10), TimeUnit.SECONDS)
+                .maxConnectionIdle(CONNECTION_IDLE_SECONDS, TimeUnit.SECONDS);
+        ExecutorService executor = null;
+
+        switch (mode)
+        {
+            case FIXED -> builder.executor(executor = Executors.newFixedThreadPool(workerCount));
+            case VIRTUAL -> builder.executor(executor = Executors.newVirtualThreadPerTaskExecutor());
+            case DIRECT ->
+            {
+                ExecutorService blockingPool = executor = Executors.newFixedThreadPool(workerCount);
+                builder.directExecutor().callExecutor(new ServerCallExecutorSupplier()
+                {
+                    @Override
+                    public <ReqT, RespT> Executor getExecutor(ServerCall<ReqT, RespT> call, Metadata metadata)
+                    {
+                        // Every call may publish to the bus or touch the presence hash in cluster mode
+                        return cluster || BLOCKING_METHODS.contains(call.getMethodDescriptor().getFullMethodName())
+                                ? blockingPool : null;
+                    }
+                });
+            }
+        }
+
+        Server server = builder.build();
         server.start();
-        System.out.println("[SERVER] Started on port 9090");
+        HttpServer metricsHttp = METRICS_PORT >= 0 ? metrics.serve(METRICS_PORT) : null;
+        if (metricsHttp != null) Log.info("Metrics on http://localhost:" + metricsHttp.getAddress().getPort() + "/metrics");
+        Log.info("Started on port " + port + " (" + mode + ", " + workerCount + " worker(s), " + storeBackend + " store"
+                + (cluster ? ", " + clusterMode + " cluster node " + bus.nodeId() : "") + ")");
+
+        ExecutorService callExecutor = executor;
+        Threads.daemon("server-shutdown").newThread(() ->
+        {
+            try
+            {
+                server.awaitTermination();
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            callExecutor.shutdownNow();
+            if (metricsHttp != null) metricsHttp.stop(0);
+            service.close();
+        }).start();
 
         return server;
     }
 
-    public static class MessengerServiceImpl extends MessengerServiceGrpc.MessengerServiceImplBase
+    public static class MessengerServiceImpl implements MessengerServiceGrpc.AsyncService, BindableService, AutoCloseable
     {
+        private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+        private final ChannelDirectory directory = new ChannelDirectory();
+        private final LongAdder directDrops = new LongAdder();
+        private final MessageStore store;
+        private final ChannelHistory history;
+        private final ChannelFanout fanout;
+        private final ClusterBus bus;
+        private final ClusterMode clusterMode;
+        private final HashRing ring = new HashRing();
+        private final PresenceTracker presence;
+        private final ScheduledExecutorService housekeeping =
+                Executors.newSingleThreadScheduledExecutor(Threads.daemon("session-housekeeping"));
+        private final LongAdder disconnects = new LongAdder();
+        private final LongAdder cancelledEvictions = new LongAdder();
+        private final LongAdder deadStreamEvictions = new LongAdder();
+        private final LongAdder idleEvictions = new LongAdder();
+        private final LongAdder sweptStreams = new LongAdder();
+        // Sharded mode: channels this node owns -> nodes with subscribers of them
+        private final Map<String, Set<String>> interestedNodes = new ConcurrentHashMap<>();
+        // Sharded mode: channels with local subscribers -> owner their interest was last sent to
+        private final Map<String, String> announcedOwners = new ConcurrentHashMap<>();
+
+        public MessengerServiceImpl(MessageStore store)
+        {
+            this(store, HISTORY_DIR, null, ClusterMode.NONE);
+        }
+
+        public MessengerServiceImpl(MessageStore store, Path historyDir, ClusterBus bus, ClusterMode clusterMode)
+        {
+            this.clusterMode = clusterMode;
+            this.store = STORE_WRITE_BEHIND
+                    ? new WriteBehindStore(store, STORE_BATCH_SIZE, STORE_FLUSH_MILLIS, STORE_QUEUE_LIMIT)
+                    : store;
+            this.history = HISTORY_ENABLED
+                    ? new ChannelHistory(historyDir, HISTORY_SEGMENT_BYTES, HISTORY_RETENTION_BYTES,
+                            TimeUnit.HOURS.toMillis(HISTORY_RETENTION_HOURS), channelId -> directory.get(channelId) != null)
+                    : null;
+            this.fanout = new ChannelFanout(STREAM_BUFFER_LIMIT, OVERFLOW_POLICY, deliveryPool,
+                    Runtime.getRuntime().availableProcessors(), history);
+            this.bus = bus;
+            this.presence = new PresenceTracker(PRESENCE_WINDOW_MILLIS, PRESENCE_LOG_SIZE, this::publishPresence);
+            if (bus != null) presence.seed(bus.users());
+            for (ChannelDirectory.ChannelInfo channel : store.loadChannels()) directory.add(channel);
+            housekeeping.scheduleWithFixedDelay(() -> sweep(TimeUnit.SECONDS.toNanos(REAPER_IDLE_SECONDS)),
+                    REAPER_INTERVAL_SECONDS, REAPER_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public void close()
+        {
+            if (bus != null) bus.close();
+            housekeeping.shutdownNow();
+            presence.close();
+            fanout.close();
+            try
+            {
+                if (history != null) history.close();
+            }
+            catch (IOException e)
+            {
+                Log.error("Failed to close channel history: " + e.getMessage());
+            }
+            store.close();
+        }
+
+        void registerMetrics(Metrics metrics)
+        {
+            metrics.gauge("messenger_sessions", "Sessions and receive streams on this node", sessions::size);
+            metrics.gauge("messenger_channel_subscribers", "Channel subscriptions on this node", fanout::subscriberCount);
+            metrics.gauge("messenger_channel_queue_depth", "Channel messages queued for delivery", fanout::queueDepth);
+            metrics.counter("messenger_channel_dropped_total", "Channel messages dropped on overflow",
+                    fanout::droppedCount);
+            metrics.counter("messenger_direct_dropped_total", "Direct messages dropped on overflow", directDrops::sum);
+            metrics.gauge("messenger_delivery_unacked", "Direct messages waiting for a client ack", this::unackedCount);
+            metrics.counter("messenger_sessions_disconnected_total", "Sessions closed by Disconnect", disconnects::sum);
+            metrics.register(out ->
+            {
+                out.family("messenger_sessions_evicted_total", "counter", "Sessions dropped without a Disconnect");
+                out.sample("messenger_sessions_evicted_total", cancelledEvictions.sum(), "reason", "cancelled");
+                out.sample("messenger_sessions_evicted_total", deadStreamEvictions.sum(), "reason", "dead_stream");
+                out.sample("messenger_sessions_evicted_total", idleEvictions.sum(), "reason", "idle");
+            });
+            metrics.counter("messenger_streams_swept_total", "Closed channel subscriptions and watches swept",
+                    sweptStreams::sum);
+            metrics.gauge("messenger_expiry_pending", "Scheduled secret-message deletions", expiry::pendingCount);
+            metrics.gauge("messenger_channels", "Channels in the search index", directory::size);
+            metrics.gauge("messenger_presence_version", "Current presence version", presence::version);
+            store.registerMetrics(metrics);
+            metrics.counter("messenger_log_dropped_total", "Log lines dropped because the log buffer was full",
+                    Log::dropped);
+        }
+
+        // Messages from other nodes: only local sessions and subscribers are delivered to here
+        void onBusMessage(Messenger.BusMessage envelope)
+        {
+            if (envelope.hasPresence())
+            {
+                Messenger.PresenceUpdate update = envelope.getPresence();
+                for (String username : update.getJoinedList()) presence.set(username, true, false);
+                for (String username : update.getLeftList()) presence.set(username, false, false);
+                return;
+            }
+
+            Messenger.MessageResponse msg = envelope.getMessage();
+            if (envelope.getChannelCreated())
+            {
+                ChannelDirectory.ChannelInfo channel = new ChannelDirectory.ChannelInfo(
+                        msg.getTo().substring(CHANNEL_PREFIX.length()), msg.getFrom(), List.copyOf(msg.getTagsList()));
+                directory.add(channel);
+                announceChannel(channel, SerializedMessage.of(msg));
+                return;
+            }
+
+            String to = envelope.getTo();
+            if (!to.isEmpty())
+            {
+                Session receiver = sessions.get(to);
+                if (receiver != null && receiver.isReachable())
+                {
+                    if (msg.getDelete()) receiver.offer(msg);
+                    else if (!deliverLocal(msg, to, receiver)) storeOffline(msg.getFrom(), to, msg.getContent(), msg.getSecret());
+                }
+                else if (!msg.getDelete())
+                {
+                    // The user left between the presence lookup and delivery
+                    storeOffline(msg.getFrom(), to, msg.getContent(), msg.getSecret());
+                }
+            }
+            else if (!envelope.getChannelId().isEmpty())
+            {
+                String channelId = envelope.getChannelId();
+                if (envelope.getInterest())
+                {
+                    interestedNodes.computeIfAbsent(channelId, k -> ConcurrentHashMap.newKeySet()).add(envelope.getOrigin());
+                }
+                else if (envelope.getWithdraw())
+                {
+                    interestedNodes.computeIfPresent(channelId, (k, nodes) ->
+                    {
+                        nodes.remove(envelope.getOrigin());
+                        return nodes.isEmpty() ? null : nodes;
+                    });
+                }
+                else if (clusterMode == ClusterMode.SHARDED && !envelope.getRouted())
+                {
+                    // Sent here as to the owner. While rings disagree we still act as owner instead of bouncing it on.
+                    publishAsOwner(channelId, msg);
+                }
+                else
+                {
+                    fanoutLocal(channelId, msg);
+                }
+            }
+        }
+
+        // The receive and session streams are rebound with SerializedMessage.MARSHALLER: a broadcast is serialized
+        // once and the same bytes are written to every stream. The wire format is unchanged for clients.
+        @Override
+        public ServerServiceDefinition bindService()
+        {
+            ServerServiceDefinition generated = MessengerServiceGrpc.bindService(this);
+            MethodDescriptor<Messenger.ReceiveRequest, Messenger.MessageResponse> receive =
+                    MessengerServiceGrpc.getReceiveMessagesMethod();
+            MethodDescriptor<Messenger.ChannelReceiveRequest, Messenger.MessageResponse> receiveChannel =
+                    MessengerServiceGrpc.getReceiveChannelMessagesMethod();
+            MethodDescriptor<Messenger.SessionRequest, Messenger.MessageResponse> session =
+                    MessengerServiceGrpc.getSessionMethod();
+            Set<String> rebound = Set.of(receive.getFullMethodName(), receiveChannel.getFullMethodName(),
+                    session.getFullMethodName());
+
+            ServerServiceDefinition.Builder builder = ServerServiceDefinition.builder(MessengerServiceGrpc.SERVICE_NAME);
+            for (ServerMethodDefinition<?, ?> method : generated.getMethods())
+            {
+                if (!rebound.contains(method.getMethodDescriptor().getFullMethodName()))
+                {
+                    builder.addMethod(method);
+                }
+            }
+
+            builder.addMethod(
+                    receive.toBuilder(receive.getRequestMarshaller(), SerializedMessage.MARSHALLER).build(),
+                    ServerCalls.asyncServerStreamingCall(this::streamMessages));
+            builder.addMethod(
+                    receiveChannel.toBuilder(receiveChannel.getRequestMarshaller(), SerializedMessage.MARSHALLER).build(),
+                    ServerCalls.asyncServerStreamingCall(this::streamChannelMessages));
+            builder.addMethod(
+                    session.toBuilder(session.getRequestMarshaller(), SerializedMessage.MARSHALLER).build(),
+                    ServerCalls.asyncBidiStreamingCall(this::openSession));
+            return builder.build();
+        }
 
         @Override
         public void sendMessage(Messenger.MessageRequest request, StreamObserver<Messenger.SendResponse> responseObserver)
         {
             String to = request.getTo();
-            String from = request.getFrom();
             boolean isSecret = request.getSecret();
 
+            String status = deliverDirect(request.getFrom(), to, request.getContent(), isSecret);
+
+            Messenger.SendResponse response = Messenger.SendResponse.newBuilder()
+                    .setStatus(status)
+                    .build();
+
+            Log.debug(() -> "Sended message to " + to + ", (secret)" + isSecret + ": " + status);
+
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+        }
+
+        // The outcome as reported to the sender: "Delivered", "Forwarded" or "Stored"
+        private String deliverDirect(String from, String to, String content, boolean isSecret)
+        {
             Messenger.MessageResponse msg = Messenger.MessageResponse.newBuilder()
                     .setFrom(from)
-                    .setContent(request.getContent())
+                    .setContent(content)
                     .setSystem(false)
                     .setSecret(isSecret)
                     .build();
 
-            StreamObserver<Messenger.MessageResponse> receiver = clients.get(to);
-            StreamObserver<Messenger.MessageResponse> sender = clients.get(from);
+            Session receiver = sessions.get(to);
+            Session sender = sessions.get(from);
 
-            if (connectedUsers.contains(to) && receiver != null)
+            String status;
+            if (receiver != null && receiver.isReachable() && deliverLocal(msg, to, receiver))
             {
-                try
-                {
-                    receiver.onNext(msg);
-                    if (isSecret) scheduleDeletion(from, to, request.getContent(), receiver);
-                }
-                catch (Exception e)
-                {
-                    System.err.println("[SERVER] Failed to deliver message to " + to);
-                }
+                status = "Delivered";
+            }
+            else if (forward(to, msg))
+            {
+                status = "Forwarded";
             }
             else
             {
-                storeMessageInRedis(from, to, request.getContent(), isSecret);
+                storeOffline(from, to, content, isSecret);
+                status = "Stored";
             }
 
-            if (isSecret && sender != null)
+            if (isSecret && sender != null && sender.stream() != null)
             {
-                scheduleDeletion(from, to, request.getContent(), sender);
+                scheduleDeletion(from, to, content, sender.stream());
             }
+            return status;
+        }
 
-            Messenger.SendResponse response = Messenger.SendResponse.newBuilder()
-                    .setStatus("Delivered")
+        // Users held by nodes that left are dropped from presence, or messages to them would be forwarded
+        // to a node nobody listens on. A node only timed out by a pause comes back and re-registers its users.
+        void onMembership(Set<String> members)
+        {
+            ring.update(members);
+            for (Set<String> nodes : interestedNodes.values()) nodes.retainAll(members);
+            for (String channelId : announcedOwners.keySet()) announceInterest(channelId);
+
+            // A node that has dropped out of its own view is the stale one and leaves the others' users alone
+            if (members.contains(bus.nodeId()))
+            {
+                for (String username : bus.dropUsersOutside(members)) presence.set(username, false, true);
+            }
+            for (Session session : sessions.values())
+            {
+                if (session.isAlive()) bus.register(session.username());
+            }
+        }
+
+        // Hands the message to the node that holds the recipient; false if no other node has them.
+        // Users presence knows to be offline are not looked up in Redis at all: see recheckInbox.
+        private boolean forward(String to, Messenger.MessageResponse msg)
+        {
+            if (bus == null || !presence.isOnline(to)) return false;
+
+            // A node that stopped heartbeating may still hold entries: store instead of losing the message
+            String node = bus.locate(to);
+            if (node == null || node.equals(bus.nodeId()) || !bus.members().contains(node)) return false;
+
+            bus.sendTo(node, Messenger.BusMessage.newBuilder().setTo(to).setMessage(msg).build());
+            return true;
+        }
+
+        // False if the stream refused the message or the session's ack window is full; the caller stores it
+        private boolean deliverLocal(Messenger.MessageResponse msg, String to, Session receiver)
+        {
+            OutboundQueue queue = receiver.stream();
+            if (!receiver.deliver(msg))
+            {
+                Log.debug(() -> "Stream of " + to + " did not take a message, storing it");
+                return false;
+            }
+
+            if (msg.getSecret()) scheduleDeletion(msg.getFrom(), to, msg.getContent(), queue);
+            return true;
+        }
+
+        private void scheduleDeletion(String from, String to, String content, OutboundQueue observer)
+        {
+            Messenger.MessageResponse deleteSignal = Messenger.MessageResponse.newBuilder()
+                    .setFrom(from)
+                    .setTo(to)
+                    .setContent(content)
+                    .setSystem(false)
+                    .setSecret(true)
+                    .setDelete(true)
                     .build();
+            expiry.schedule(observer, deleteSignal, SECRET_MESSAGE_TTL, TimeUnit.SECONDS);
+        }
 
-            System.out.println("[DEBUG SERVER] Sended message to " + to + ", (secret)" + isSecret);
+        private void storeOffline(String from, String to, String content, boolean isSecret)
+        {
+            store.storeMessage(from, to, content, isSecret, SECRET_MESSAGE_TTL);
+        }
 
-            responseObserver.onNext(response);
-            responseObserver.onCompleted();
+        // Runs on the fan-out dispatcher; with write-behind on, the store only queues it
+        private void spill(String key, SerializedMessage msg)
+        {
+            store.spill(key, msg.bytes());
+        }
+
+        // Overflowing direct messages go back to the offline inbox. Nothing else is kept: a delete would come
+        // back as a new message with the content it removed, and presence is resent as a snapshot on connect.
+        private OutboundQueue inboxQueue(Supplier<Session> owner, StreamObserver<SerializedMessage> observer)
+        {
+            return new OutboundQueue(observer, STREAM_BUFFER_LIMIT, deliveryPool, OVERFLOW_POLICY,
+                    msg ->
+                    {
+                        Messenger.MessageResponse spilled = msg.message();
+                        Session session = owner.get();
+                        if (session != null && !spilled.getSystem() && !spilled.getDelete())
+                        {
+                            // Now in the inbox, so the window must not persist it a second time
+                            if (session.window() != null && spilled.getMessageId() != 0)
+                            {
+                                session.window().forget(spilled.getMessageId());
+                            }
+                            storeOffline(spilled.getFrom(), session.username(), spilled.getContent(), spilled.getSecret());
+                        }
+                    },
+                    msg -> dropped(owner.get(), msg.message()));
         }
 
-        private void scheduleDeletion(String from, String to, String content, StreamObserver<Messenger.MessageResponse> observer)
+        // A numbered message pushed out under DROP_OLDEST is still in the window, where a later cumulative ack
+        // would remove it unseen: it goes to the inbox instead. Under DISCONNECT the sender got the refusal, and
+        // what is still queued is persisted with the window when the session goes.
+        private void dropped(Session session, Messenger.MessageResponse msg)
         {
-            scheduler.schedule(() ->
+            directDrops.increment();
+            if (OVERFLOW_POLICY != OutboundQueue.OverflowPolicy.DROP_OLDEST) return;
+            if (session == null || session.window() == null || msg.getMessageId() == 0) return;
+
+            if (session.window().forget(msg.getMessageId()))
             {
-                Messenger.MessageResponse deleteSignal = Messenger.MessageResponse.newBuilder()
-                        .setFrom(from)
-                        .setTo(to)
-                        .setContent(content)
-                        .setSystem(false)
-                        .setSecret(true)
-                        .setDelete(true)
-                        .build();
-                observer.onNext(deleteSignal);
-                System.out.println("[DEBUG SERVER] Sent delete signal to " + to + " for: " + content);
-            }, SECRET_MESSAGE_TTL, TimeUnit.SECONDS);
+                storeOffline(msg.getFrom(), session.username(), msg.getContent(), msg.getSecret());
+            }
+        }
+
+        // Messages the client never acked go back to the inbox; a secret keeps only what is left of its lifetime
+        private void persistUnacked(Session session)
+        {
+            DeliveryWindow window = session.window();
+            if (window == null) return;
+
+            long now = System.currentTimeMillis();
+            for (DeliveryWindow.Unacked unacked : window.close())
+            {
+                Messenger.MessageResponse msg = unacked.message();
+                int ttl = SECRET_MESSAGE_TTL;
+                if (msg.getSecret())
+                {
+                    ttl -= (int) TimeUnit.MILLISECONDS.toSeconds(now - unacked.deliveredAt());
+                    if (ttl <= 0) continue;
+                }
+                store.storeMessage(msg.getFrom(), session.username(), msg.getContent(), msg.getSecret(), ttl);
+            }
         }
 
-        private void storeMessageInRedis(String from, String to, String content, boolean isSecret)
+        private long unackedCount()
         {
-            String key = "msg:" + to + ":" + UUID.randomUUID();
-            redis.hset(key, Map.of(
-                    "from", from,
-                    "content", content,
-                    "secret", Boolean.toString(isSecret)
-            ));
-            if (isSecret) redis.expire(key, SECRET_MESSAGE_TTL);
+            long unacked = 0;
+            for (Session session : sessions.values())
+            {
+                if (session.window() != null) unacked += session.window().size();
+            }
+            return unacked;
         }
 
-        @Override
-        public void receiveMessages(Messenger.ReceiveRequest request, StreamObserver<Messenger.MessageResponse> responseObserver)
+        // Cluster mode: a node that has not seen this user's join yet (presence is one window behind) still
+        // writes to the inbox, possibly after the drain on connect. Drain once more when that can no longer happen.
+        private void recheckInbox(String username)
         {
-            String username = request.getUsername();
-            clients.put(username, responseObserver);
+            if (bus == null) return;
+
+            long delay = PRESENCE_WINDOW_MILLIS + STORE_FLUSH_MILLIS + INBOX_RECHECK_MARGIN_MILLIS;
+            housekeeping.schedule(() ->
+            {
+                Session session = sessions.get(username);
+                if (session != null && session.isReachable()) replayInbox(session);
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        // Cancel hooks cover streams the client ends; this covers streams closed from our side (overflow,
+        // a failed write) and Connects never followed by a receive stream. Returns how many sessions went.
+        int sweep(long idleNanos)
+        {
+            int evicted = 0;
+            long now = System.nanoTime();
+            for (Session session : sessions.values())
+            {
+                OutboundQueue stream = session.stream();
+                if (stream != null && stream.isClosed())
+                {
+                    if (evict(session, deadStreamEvictions)) evicted++;
+                }
+                else if (stream == null && now - session.createdNanos() >= idleNanos)
+                {
+                    if (evict(session, idleEvictions)) evicted++;
+                }
+            }
+            sweptStreams.add(fanout.sweep() + directory.sweep());
+            // Streams closed from our side leave their channels here rather than through a cancel handler
+            for (String channelId : announcedOwners.keySet()) withdrawInterest(channelId);
+            if (history != null) history.retain();
+            if (evicted > 0) Log.info("Evicted " + evicted + " dead session(s)");
+            return evicted;
+        }
+
+        // Drops a session and everything hanging off its stream, for Disconnect and for sessions nobody will
+        // disconnect; false if it was already replaced
+        private boolean evict(Session session, LongAdder reason)
+        {
+            String username = session.username();
+            if (!sessions.remove(username, session)) return false;
 
-            Set<String> keys = redis.keys("msg:" + username + ":*");
-            for (String key : keys)
+            persistUnacked(session);
+            OutboundQueue stream = session.stream();
+            if (stream != null)
             {
-                Map<String, String> data = redis.hgetAll(key);
-                boolean isSecret = Boolean.parseBoolean(data.getOrDefault("secret", "false"));
+                expiry.cancelAll(stream);
+                directory.unwatch(stream);
+                // Cancelled and dead streams are closed already; a live one is ended so the call is released
+                // and the client sees it. What it still had queued went back to the inbox with the window.
+                if (!stream.isClosed()) stream.end();
+            }
+            unregister(username);
+            if (session.isOnline()) presence.set(username, false, true);
+            reason.increment();
+            return true;
+        }
 
+        private void replayInbox(Session session)
+        {
+            String username = session.username();
+            for (MessageStore.StoredMessage stored : store.drainMessages(username))
+            {
                 Messenger.MessageResponse msg = Messenger.MessageResponse.newBuilder()
-                        .setFrom(data.get("from"))
-                        .setContent(data.get("content"))
+                        .setFrom(stored.from())
+                        .setContent(stored.content())
                         .setSystem(false)
-                        .setSecret(isSecret)
+                        .setSecret(stored.secret())
                         .build();
 
-                responseObserver.onNext(msg);
+                if (!session.replay(msg))
+                {
+                    storeOffline(stored.from(), username, stored.content(), stored.secret());
+                    continue;
+                }
+
+                if (stored.secret()) scheduleDeletion(stored.from(), username, stored.content(), session.stream());
+            }
+        }
+
+        // Other nodes only get the changes of users connected here; they batch them into their own versions
+        private void publishPresence(Messenger.PresenceUpdate update, Messenger.PresenceUpdate origin)
+        {
+            broadcastLocal(SerializedMessage.of(Messenger.MessageResponse.newBuilder()
+                    .setSystem(true)
+                    .setStatus("Presence")
+                    .setPresence(update)
+                    .build()));
+
+            if (bus != null && origin.getJoinedCount() + origin.getLeftCount() > 0)
+            {
+                bus.publish(Messenger.BusMessage.newBuilder().setPresence(origin).build());
+            }
+        }
+
+        private void broadcastLocal(SerializedMessage msg)
+        {
+            for (Session session : sessions.values()) session.offer(msg);
+        }
+
+        // New channels go only to streams watching one of their tags
+        private void announceChannel(ChannelDirectory.ChannelInfo channel, SerializedMessage announcement)
+        {
+            for (OutboundQueue watcher : directory.watchers(channel)) watcher.offer(announcement);
+        }
+
+        // msg is either a single channel message or a batch envelope
+        private void publishChannel(String channelId, Messenger.MessageResponse msg)
+        {
+            if (clusterMode == ClusterMode.SHARDED)
+            {
+                String owner = ring.owner(channelId);
+                if (owner != null && !owner.equals(bus.nodeId()))
+                {
+                    bus.sendTo(owner, Messenger.BusMessage.newBuilder().setChannelId(channelId).setMessage(msg).build());
+                }
+                else
+                {
+                    publishAsOwner(channelId, msg);
+                }
+                return;
+            }
+
+            fanoutLocal(channelId, msg);
+            if (bus != null) bus.publish(Messenger.BusMessage.newBuilder().setChannelId(channelId).setMessage(msg).build());
+        }
 
-                if (isSecret) scheduleDeletion(data.get("from"), username, data.get("content"), responseObserver);
+        private void publishAsOwner(String channelId, Messenger.MessageResponse msg)
+        {
+            fanoutLocal(channelId, msg);
 
-                redis.del(key);
+            Set<String> nodes = interestedNodes.get(channelId);
+            if (nodes == null || nodes.isEmpty()) return;
+
+            Messenger.BusMessage routed = Messenger.BusMessage.newBuilder()
+                    .setChannelId(channelId)
+                    .setMessage(msg)
+                    .setRouted(true)
+                    .build();
+            for (String node : nodes)
+            {
+                if (!node.equals(bus.nodeId())) bus.sendTo(node, routed);
             }
         }
 
+        private void fanoutLocal(String channelId, Messenger.MessageResponse msg)
+        {
+            if (msg.getBatchCount() > 0) fanout.publishBatch(channelId, msg.getBatchList());
+            else fanout.publish(channelId, SerializedMessage.of(msg));
+        }
+
+        // Asks the channel's owner to forward its messages here; repeated only when the owner changes, and
+        // then the previous owner is told to stop. Serialized with withdrawInterest so a subscriber arriving
+        // as the last one leaves is not left without the owner's messages.
+        private void announceInterest(String channelId)
+        {
+            if (clusterMode != ClusterMode.SHARDED) return;
+
+            synchronized (announcedOwners)
+            {
+                String owner = ring.owner(channelId);
+                String previous = announcedOwners.put(channelId, owner == null ? "" : owner);
+                if (owner != null && !owner.equals(bus.nodeId()) && !owner.equals(previous))
+                {
+                    bus.sendTo(owner, Messenger.BusMessage.newBuilder().setChannelId(channelId).setInterest(true).build());
+                }
+                if (previous != null && !previous.equals(owner) && bus.members().contains(previous))
+                {
+                    withdraw(previous, channelId);
+                }
+            }
+        }
+
+        // Tells the owner to stop forwarding a channel once its last local subscriber is gone
+        private void withdrawInterest(String channelId)
+        {
+            if (clusterMode != ClusterMode.SHARDED) return;
+
+            synchronized (announcedOwners)
+            {
+                if (fanout.subscriberCount(channelId) > 0) return;
+                String owner = announcedOwners.remove(channelId);
+                if (owner != null) withdraw(owner, channelId);
+            }
+        }
+
+        private void withdraw(String owner, String channelId)
+        {
+            if (owner.isEmpty() || owner.equals(bus.nodeId())) return;
+            bus.sendTo(owner, Messenger.BusMessage.newBuilder().setChannelId(channelId).setWithdraw(true).build());
+        }
+
+        private void register(String username)
+        {
+            if (bus != null) bus.register(username);
+        }
+
+        private void unregister(String username)
+        {
+            if (bus != null) bus.unregister(username);
+        }
+
+        private void streamMessages(Messenger.ReceiveRequest request, StreamObserver<SerializedMessage> responseObserver)
+        {
+            String username = request.getUsername();
+            Session existing = sessions.computeIfAbsent(username, Session::new);
+            if (existing.isBidirectional() && !existing.isAlive())
+            {
+                // A Session call closed from our side that the reaper has not got to yet
+                evict(existing, deadStreamEvictions);
+                existing = sessions.computeIfAbsent(username, Session::new);
+            }
+            // Attaching would take a live Session call's stream away from it
+            if (existing.isBidirectional())
+            {
+                responseObserver.onError(Status.ALREADY_EXISTS
+                        .withDescription("User " + username + " already has a session").asRuntimeException());
+                return;
+            }
+
+            Session session = existing;
+            OutboundQueue queue = inboxQueue(() -> sessions.get(username), responseObserver);
+            session.attach(queue);
+            // A newer receive stream may have taken the session over by the time this one is cancelled
+            ((ServerCallStreamObserver<SerializedMessage>) responseObserver).setOnCancelHandler(() ->
+            {
+                queue.close();
+                if (session.stream() == queue) evict(session, cancelledEvictions);
+            });
+            register(username);
+            if (request.hasWatch()) directory.watch(queue, request.getWatch().getTagsList(), request.getWatch().getAll());
+
+            replayInbox(session);
+            recheckInbox(username);
+        }
+
+        @Override
+        public void searchChannels(Messenger.SearchChannelsRequest request,
+                                   StreamObserver<Messenger.SearchChannelsResponse> responseObserver)
+        {
+            int limit = request.getPageSize() <= 0 ? SEARCH_PAGE_SIZE : Math.min(request.getPageSize(), SEARCH_PAGE_LIMIT);
+            ChannelDirectory.Page page = directory.search(request.getTagsList(), request.getNamePrefix(),
+                    request.getPageToken(), limit);
+
+            Messenger.SearchChannelsResponse.Builder response = Messenger.SearchChannelsResponse.newBuilder()
+                    .setNextPageToken(page.nextToken());
+            for (ChannelDirectory.ChannelInfo channel : page.channels())
+            {
+                response.addChannels(Messenger.ChannelInfo.newBuilder()
+                        .setId(channel.id())
+                        .setCreator(channel.creator())
+                        .addAllTags(channel.tags()));
+            }
+
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void getPresence(Messenger.PresenceRequest request,
+                                StreamObserver<Messenger.PresenceUpdate> responseObserver)
+        {
+            responseObserver.onNext(presence.since(request.getSinceVersion()));
+            responseObserver.onCompleted();
+        }
+
         @Override
         public void getChannelStats(Messenger.ChannelStatsRequest request, StreamObserver<Messenger.ChannelStatsResponse> responseObserver)
         {
             String channelId = request.getChannelId();
-            int count = channelMessageCounts.getOrDefault(channelId, new AtomicInteger(0)).get();
+            Messenger.ChannelStatsResponse.Builder response = Messenger.ChannelStatsResponse.newBuilder()
+                    .setQueuedMessages(fanout.queueDepth(channelId))
+                    .setDroppedMessages(fanout.droppedCount(channelId))
+                    .setSubscribers(fanout.subscriberCount(channelId));
 
-            Messenger.ChannelStatsResponse response = Messenger.ChannelStatsResponse.newBuilder()
-                    .setTotalMessages(count)
-                    .build();
+            ChannelStats stats = fanout.existingStats(channelId);
+            if (stats != null)
+            {
+                response.setTotalMessages(stats.totalMessages())
+                        .setTotalBytes(stats.totalBytes())
+                        .setLastSecond(rate(stats.rate(1)))
+                        .setLastMinute(rate(stats.rate(60)))
+                        .setLastFiveMinutes(rate(stats.rate(300)))
+                        .setFanoutLatency(Messenger.FanoutLatency.newBuilder()
+                                .setP50Micros(stats.fanoutPercentileMicros(50))
+                                .setP99Micros(stats.fanoutPercentileMicros(99))
+                                .setP999Micros(stats.fanoutPercentileMicros(99.9))
+                                .setMaxMicros(stats.fanoutMaxMicros())
+                                .setSamples(stats.fanoutSamples()));
+            }
 
-            responseObserver.onNext(response);
+            responseObserver.onNext(response.build());
             responseObserver.onCompleted();
         }
 
@@ -173,64 +894,149 @@ public class Main
                                        StreamObserver<Messenger.SendResponse> responseObserver)
         {
             String channelId = request.getChannelId();
-            String from = request.getFrom();
-            String content = request.getContent();
 
-            channelMessageCounts.computeIfAbsent(channelId, k -> new AtomicInteger()).incrementAndGet();
+            Messenger.MessageResponse msg = channelMessage(request);
+            fanout.stats(channelId).recordMessages(1, msg.getSerializedSize());
 
-            Messenger.MessageResponse msg = Messenger.MessageResponse.newBuilder()
-                    .setFrom(from)
-                    .setContent(content)
-                    .setSystem(false)
-                    .build();
+            publishChannel(channelId, msg);
 
-            Set<StreamObserver<Messenger.MessageResponse>> subscribers =
-                    channelSubscribers.getOrDefault(channelId, Collections.emptySet());
+            responseObserver.onNext(
+                    Messenger.SendResponse.newBuilder().setStatus("Delivered").setAccepted(1).build()
+            );
+            responseObserver.onCompleted();
+        }
 
-            Iterator<StreamObserver<Messenger.MessageResponse>> it = subscribers.iterator();
-            while (it.hasNext())
+        @Override
+        public StreamObserver<Messenger.ChannelMessageRequest> sendChannelMessages(
+                StreamObserver<Messenger.SendResponse> responseObserver)
+        {
+            // gRPC never calls one inbound observer concurrently, so the pending batches need no locking
+            return new StreamObserver<>()
             {
-                StreamObserver<Messenger.MessageResponse> obs = it.next();
-                try
+                private final Map<String, List<Messenger.MessageResponse>> pending = new LinkedHashMap<>();
+                private int accepted;
+
+                @Override
+                public void onNext(Messenger.ChannelMessageRequest request)
                 {
-                    obs.onNext(msg);
+                    List<Messenger.MessageResponse> batch =
+                            pending.computeIfAbsent(request.getChannelId(), k -> new ArrayList<>());
+                    batch.add(channelMessage(request));
+                    accepted++;
+
+                    if (batch.size() >= CHANNEL_BATCH_LIMIT) flush(request.getChannelId());
                 }
-                catch (RuntimeException ex)
+
+                @Override
+                public void onError(Throwable t)
                 {
-                    it.remove();
+                    pending.clear();
                 }
-            }
 
-            responseObserver.onNext(
-                    Messenger.SendResponse.newBuilder().setStatus("Delivered").build()
-            );
-            responseObserver.onCompleted();
+                @Override
+                public void onCompleted()
+                {
+                    for (String channelId : new ArrayList<>(pending.keySet()))
+                    {
+                        flush(channelId);
+                    }
+
+                    responseObserver.onNext(Messenger.SendResponse.newBuilder()
+                            .setStatus("Delivered")
+                            .setAccepted(accepted)
+                            .build());
+                    responseObserver.onCompleted();
+                }
+
+                private void flush(String channelId)
+                {
+                    List<Messenger.MessageResponse> batch = pending.remove(channelId);
+                    if (batch == null) return;
+
+                    Messenger.MessageResponse envelope = Messenger.MessageResponse.newBuilder().addAllBatch(batch).build();
+                    fanout.stats(channelId).recordMessages(batch.size(), envelope.getSerializedSize());
+                    publishChannel(channelId, envelope);
+                }
+            };
         }
 
-        @Override
-        public void receiveChannelMessages(Messenger.ChannelReceiveRequest request,
-                                           StreamObserver<Messenger.MessageResponse> responseObserver)
+        private static Messenger.ChannelRate rate(ChannelStats.Rate rate)
+        {
+            return Messenger.ChannelRate.newBuilder()
+                    .setMessagesPerSecond(rate.messagesPerSecond())
+                    .setBytesPerSecond(rate.bytesPerSecond())
+                    .build();
+        }
+
+        private Messenger.MessageResponse channelMessage(Messenger.ChannelMessageRequest request)
+        {
+            return Messenger.MessageResponse.newBuilder()
+                    .setFrom(request.getFrom())
+                    .setContent(request.getContent())
+                    .setSystem(false)
+                    .build();
+        }
+
+        private void streamChannelMessages(Messenger.ChannelReceiveRequest request,
+                                           StreamObserver<SerializedMessage> responseObserver)
         {
             String channelId = request.getChannelId();
-            ServerCallStreamObserver<Messenger.MessageResponse> serverObs =
-                    (ServerCallStreamObserver<Messenger.MessageResponse>) responseObserver;
+            String spillKey = "spill:" + channelId + ":" + request.getUsername();
+            ServerCallStreamObserver<SerializedMessage> serverObs =
+                    (ServerCallStreamObserver<SerializedMessage>) responseObserver;
+            if (request.hasStartOffset())
+            {
+                String refusal = replayRefusal(request.getLog());
+                if (refusal != null)
+                {
+                    serverObs.onError(Status.FAILED_PRECONDITION.withDescription(refusal).asRuntimeException());
+                    return;
+                }
+            }
 
+            // Taken before subscribing so they go out ahead of live messages; a replay from the log covers them
+            List<SerializedMessage> spilled = OVERFLOW_POLICY == OutboundQueue.OverflowPolicy.SPILL
+                    ? takeSpilled(spillKey) : List.of();
+            OutboundQueue queue = fanout.subscribe(channelId, serverObs, msg -> spill(spillKey, msg),
+                    request.getAcceptBatches(), request.hasStartOffset() ? request.getStartOffset() : -1, spilled);
             serverObs.setOnCancelHandler(() ->
-                    channelSubscribers.getOrDefault(channelId, Collections.emptySet())
-                            .remove(responseObserver)
-            );
+            {
+                fanout.unsubscribe(channelId, queue);
+                withdrawInterest(channelId);
+            });
+            announceInterest(channelId);
+        }
+
+        private List<SerializedMessage> takeSpilled(String spillKey)
+        {
+            List<SerializedMessage> spilled = new ArrayList<>();
+            for (byte[] bytes : store.takeSpilled(spillKey))
+            {
+                try
+                {
+                    spilled.add(SerializedMessage.parseFrom(bytes));
+                }
+                catch (InvalidProtocolBufferException e)
+                {
+                    Log.warn("Skipping corrupt spilled message for " + spillKey);
+                }
+            }
+            return spilled;
+        }
 
-            channelSubscribers
-                    .computeIfAbsent(channelId, k -> ConcurrentHashMap.newKeySet())
-                    .add(responseObserver);
+        // Offsets index this node's own log. Without a log id only a single node can tell what they mean.
+        private String replayRefusal(String log)
+        {
+            if (history == null) return "Channel history is off on this node";
+            if (log.equals(history.id()) || log.isEmpty() && bus == null) return null;
+            return "start_offset belongs to another node's channel log";
         }
 
         @Override
         public void disconnect(Messenger.DisconnectRequest request, StreamObserver<Messenger.Empty> responseObserver)
         {
-            String username = request.getUsername();
-            connectedUsers.remove(username);
-            clients.remove(username);
+            Session session = sessions.get(request.getUsername());
+            if (session != null) evict(session, disconnects);
             responseObserver.onNext(Messenger.Empty.newBuilder().build());
             responseObserver.onCompleted();
         }
@@ -239,25 +1045,16 @@ public class Main
         public void connect(Messenger.ConnectRequest request, StreamObserver<Messenger.ConnectResponse> responseObserver)
         {
             String username = request.getUsername();
-            connectedUsers.add(username);
+            sessions.computeIfAbsent(username, Session::new).setOnline(true);
+            register(username);
+            presence.set(username, true, true);
 
+            Messenger.PresenceUpdate update = presence.since(request.getPresenceVersion());
             Messenger.ConnectResponse response = Messenger.ConnectResponse.newBuilder()
-                    .addAllUsers(connectedUsers)
+                    .addAllUsers(update.getUsersList())
+                    .setPresence(update)
                     .build();
 
-            for (Map.Entry<String, StreamObserver<Messenger.MessageResponse>> entry : clients.entrySet())
-            {
-                if (!entry.getKey().equals(username))
-                {
-                    Messenger.MessageResponse joinMsg = Messenger.MessageResponse.newBuilder()
-                            .setFrom(username)
-                            .setContent("joined")
-                            .setSystem(true)
-                            .build();
-                    entry.getValue().onNext(joinMsg);
-                }
-            }
-
             responseObserver.onNext(response);
             responseObserver.onCompleted();
         }
@@ -270,25 +1067,191 @@ public class Main
             String creator = request.getCreator();
             List<String> tags = request.getTagsList();
 
-            channels.put(id, creator);
-            redis.hset("channel:" + id, "creator", creator);
-            redis.hset("channel:" + id, "tags", String.join(",", tags));
+            ChannelDirectory.ChannelInfo channel = new ChannelDirectory.ChannelInfo(id, creator, List.copyOf(tags));
+            directory.add(channel);
+            store.saveChannel(id, creator, tags);
 
-            Messenger.MessageResponse broadcast = Messenger.MessageResponse.newBuilder()
+            Messenger.MessageResponse announcement = Messenger.MessageResponse.newBuilder()
                     .setFrom(creator)
                     .setContent(name)
                     .setSystem(true)
-                    .setTo("CHANNEL:" + id)
+                    .setTo(CHANNEL_PREFIX + id)
                     .addAllTags(tags)
                     .build();
-
-            for (Map.Entry<String, StreamObserver<Messenger.MessageResponse>> entry : clients.entrySet())
+            announceChannel(channel, SerializedMessage.of(announcement));
+            if (bus != null)
             {
-                entry.getValue().onNext(broadcast);
+                bus.publish(Messenger.BusMessage.newBuilder().setMessage(announcement).setChannelCreated(true).build());
             }
 
             responseObserver.onNext(Messenger.Empty.newBuilder().build());
             responseObserver.onCompleted();
         }
+
+        private StreamObserver<Messenger.SessionRequest> openSession(StreamObserver<SerializedMessage> responseObserver)
+        {
+            return new SessionHandler((ServerCallStreamObserver<SerializedMessage>) responseObserver);
+        }
+
+        // One bidirectional call carries sends, presence and deletes for a user. Ready and cancel handlers
+        // can only be installed before the call starts, so the queue exists before the open request arrives.
+        private class SessionHandler implements StreamObserver<Messenger.SessionRequest>
+        {
+            private final ServerCallStreamObserver<SerializedMessage> observer;
+            private final OutboundQueue queue;
+            private volatile Session session;
+
+            SessionHandler(ServerCallStreamObserver<SerializedMessage> observer)
+            {
+                this.observer = observer;
+                this.queue = inboxQueue(() -> session, observer);
+                observer.setOnCancelHandler(this::release);
+            }
+
+            @Override
+            public void onNext(Messenger.SessionRequest request)
+            {
+                if (queue.isClosed()) return;
+
+                if (request.getKindCase() == Messenger.SessionRequest.KindCase.OPEN)
+                {
+                    open(request.getOpen());
+                    return;
+                }
+
+                if (session == null)
+                {
+                    fail(Status.FAILED_PRECONDITION.withDescription("Session is not open"));
+                    return;
+                }
+
+                switch (request.getKindCase())
+                {
+                    case SEND -> send(request.getSend());
+                    case PRESENCE -> presence(request.getPresence().getOnline());
+                    case DELETE -> delete(request.getDelete());
+                    case WATCH -> directory.watch(queue, request.getWatch().getTagsList(), request.getWatch().getAll());
+                    case ACK -> ack(request.getAck().getUpTo());
+                    default -> { }
+                }
+            }
+
+            @Override
+            public void onError(Throwable t)
+            {
+                release();
+            }
+
+            @Override
+            public void onCompleted()
+            {
+                release();
+                queue.complete();
+            }
+
+            private void open(Messenger.SessionOpen request)
+            {
+                String username = request.getUsername();
+                if (session != null || username.isEmpty())
+                {
+                    fail(Status.FAILED_PRECONDITION.withDescription("Session is already open or has no username"));
+                    return;
+                }
+
+                Session fresh = new Session(username, queue, true,
+                        request.getAcks() ? new DeliveryWindow(DELIVERY_WINDOW) : null);
+                Session previous = sessions.get(username);
+                Session current = sessions.compute(username, (k, existing) ->
+                        existing != null && existing.isBidirectional() && existing.isAlive() ? existing : fresh);
+                if (current != fresh)
+                {
+                    fail(Status.ALREADY_EXISTS.withDescription("User " + username + " already has a session"));
+                    return;
+                }
+                session = fresh;
+                // A stream the server closed (overflow) never reaches release(); its unacked messages are replayed below
+                if (previous != null) persistUnacked(previous);
+                register(username);
+                presence.set(username, true, true);
+
+                // Registered before the version is read, so no later delta can miss this stream
+                Messenger.PresenceUpdate update = presence.since(request.getPresenceVersion());
+                queue.offer(Messenger.MessageResponse.newBuilder()
+                        .setSystem(true)
+                        .setTo(username)
+                        .setStatus("Opened")
+                        .addAllUsers(update.getUsersList())
+                        .setPresence(update)
+                        .build());
+                replayInbox(fresh);
+                recheckInbox(username);
+            }
+
+            private void send(Messenger.SessionSend send)
+            {
+                String username = session.username();
+                String status = deliverDirect(username, send.getTo(), send.getContent(), send.getSecret());
+
+                queue.offer(Messenger.MessageResponse.newBuilder()
+                        .setSystem(true)
+                        .setTo(username)
+                        .setAckId(send.getId())
+                        .setStatus(status)
+                        .build());
+            }
+
+            private void ack(long upTo)
+            {
+                DeliveryWindow window = session.window();
+                if (window != null) window.ack(upTo);
+            }
+
+            private void presence(boolean online)
+            {
+                if (session.isOnline() == online) return;
+
+                session.setOnline(online);
+                presence.set(session.username(), online, true);
+            }
+
+            private void delete(Messenger.SessionDelete delete)
+            {
+                Messenger.MessageResponse signal = Messenger.MessageResponse.newBuilder()
+                        .setFrom(session.username())
+                        .setTo(delete.getTo())
+                        .setContent(delete.getContent())
+                        .setSystem(false)
+                        .setSecret(true)
+                        .setDelete(true)
+                        .build();
+
+                SerializedMessage shared = SerializedMessage.of(signal);
+                Session receiver = sessions.get(delete.getTo());
+                if (receiver != null) receiver.offer(shared);
+                else forward(delete.getTo(), signal);
+                queue.offer(shared);
+            }
+
+            private void fail(Status status)
+            {
+                release();
+                queue.fail(status);
+            }
+
+            private void release()
+            {
+                directory.unwatch(queue);
+                Session current = session;
+                if (current == null) return;
+
+                persistUnacked(current);
+                if (sessions.remove(current.username(), current))
+                {
+                    unregister(current.username());
+                    expiry.cancelAll(queue);
+                    if (current.isOnline()) presence.set(current.username(), false, true);
+                }
+            }
+        }
     }
 }
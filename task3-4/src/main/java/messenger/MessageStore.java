@@ -0,0 +1,45 @@
+package messenger;
+
+import java.util.List;
+
+// Offline inboxes, spilled stream overflow and the channel catalogue. Chosen at startup with -Dmessenger.store.
+public interface MessageStore extends AutoCloseable
+{
+    record StoredMessage(String from, String content, boolean secret)
+    {
+    }
+
+    record OfflineMessage(String from, String to, String content, boolean secret, int ttlSeconds)
+    {
+    }
+
+    // Secret messages expire ttlSeconds after being stored
+    void storeMessage(String from, String to, String content, boolean secret, int ttlSeconds);
+
+    // Backends that can write a batch in one round trip override this
+    default void storeMessages(List<OfflineMessage> messages)
+    {
+        for (OfflineMessage message : messages)
+        {
+            storeMessage(message.from(), message.to(), message.content(), message.secret(), message.ttlSeconds());
+        }
+    }
+
+    // Removes and returns the inbox in arrival order, without expired secrets
+    List<StoredMessage> drainMessages(String username);
+
+    void saveChannel(String id, String creator, List<String> tags);
+
+    List<ChannelDirectory.ChannelInfo> loadChannels();
+
+    void spill(String key, byte[] message);
+
+    List<byte[]> takeSpilled(String key);
+
+    default void registerMetrics(Metrics metrics)
+    {
+    }
+
+    @Override
+    void close();
+}
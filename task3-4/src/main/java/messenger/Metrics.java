@@ -0,0 +1,110 @@
+package messenger;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.function.DoubleSupplier;
+
+// Everything is read at scrape time from state the server keeps anyway; nothing is sampled in the background.
+// Rendered in the Prometheus text format on GET /metrics.
+public class Metrics
+{
+    public interface Collector
+    {
+        void collect(Metrics.Writer out);
+    }
+
+    public static final class Writer
+    {
+        private final StringBuilder text = new StringBuilder();
+
+        public void family(String name, String type, String help)
+        {
+            text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+
+        // labels: name/value pairs
+        public void sample(String name, double value, String... labels)
+        {
+            text.append(name);
+            if (labels.length > 0)
+            {
+                text.append('{');
+                for (int i = 0; i + 1 < labels.length; i += 2)
+                {
+                    if (i > 0) text.append(',');
+                    text.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+                }
+                text.append('}');
+            }
+            text.append(' ');
+            if (value == Math.rint(value) && Math.abs(value) < 1e15) text.append((long) value);
+            else text.append(value);
+            text.append('\n');
+        }
+
+        private static String escape(String value)
+        {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+    }
+
+    private final List<Collector> collectors = new CopyOnWriteArrayList<>();
+
+    public void register(Collector collector)
+    {
+        collectors.add(collector);
+    }
+
+    public void gauge(String name, String help, DoubleSupplier value)
+    {
+        register(out ->
+        {
+            out.family(name, "gauge", help);
+            out.sample(name, value.getAsDouble());
+        });
+    }
+
+    public void counter(String name, String help, DoubleSupplier value)
+    {
+        register(out ->
+        {
+            out.family(name, "counter", help);
+            out.sample(name, value.getAsDouble());
+        });
+    }
+
+    public String scrape()
+    {
+        Writer out = new Writer();
+        for (Collector collector : collectors) collector.collect(out);
+        return out.text.toString();
+    }
+
+    // Bound to loopback: the endpoint is meant for a local agent, not the outside world
+    public HttpServer serve(int port) throws IOException
+    {
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.setExecutor(Executors.newSingleThreadExecutor(Threads.daemon("metrics-http")));
+        http.createContext("/metrics", exchange ->
+        {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody())
+            {
+                out.write(body);
+            }
+        });
+        http.start();
+        return http;
+    }
+}
@@ -0,0 +1,98 @@
+package messenger;
+
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// Per-method call counts, in-flight calls, failures by status code and call duration. For streaming methods
+// the duration is the lifetime of the stream. A call ends either by close() or by a client cancel that never
+// reaches close(); whichever comes first is recorded.
+public class MetricsInterceptor implements ServerInterceptor, Metrics.Collector
+{
+    private static final class MethodStats
+    {
+        final LongAdder started = new LongAdder();
+        final LongAdder inFlight = new LongAdder();
+        final Map<Status.Code, LongAdder> failed = new ConcurrentHashMap<>();
+        final LatencyHistogram duration = new LatencyHistogram();
+    }
+
+    private final Map<String, MethodStats> methods = new ConcurrentHashMap<>();
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next)
+    {
+        MethodStats stats = methods.computeIfAbsent(call.getMethodDescriptor().getBareMethodName(), k -> new MethodStats());
+        long started = System.nanoTime();
+        AtomicBoolean finished = new AtomicBoolean();
+        stats.started.increment();
+        stats.inFlight.increment();
+
+        ServerCall<ReqT, RespT> recorded = new ForwardingServerCall.SimpleForwardingServerCall<>(call)
+        {
+            @Override
+            public void close(Status status, Metadata trailers)
+            {
+                finish(stats, started, finished, status.getCode());
+                super.close(status, trailers);
+            }
+        };
+
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<>(next.startCall(recorded, headers))
+        {
+            @Override
+            public void onCancel()
+            {
+                finish(stats, started, finished, Status.Code.CANCELLED);
+                super.onCancel();
+            }
+        };
+    }
+
+    private static void finish(MethodStats stats, long started, AtomicBoolean finished, Status.Code code)
+    {
+        if (!finished.compareAndSet(false, true)) return;
+
+        stats.inFlight.decrement();
+        stats.duration.record((System.nanoTime() - started) / 1000);
+        if (code != Status.Code.OK) stats.failed.computeIfAbsent(code, k -> new LongAdder()).increment();
+    }
+
+    @Override
+    public void collect(Metrics.Writer out)
+    {
+        out.family("messenger_grpc_calls_started_total", "counter", "Calls started per method");
+        methods.forEach((method, stats) ->
+                out.sample("messenger_grpc_calls_started_total", stats.started.sum(), "method", method));
+
+        out.family("messenger_grpc_calls_in_flight", "gauge", "Calls currently open per method");
+        methods.forEach((method, stats) ->
+                out.sample("messenger_grpc_calls_in_flight", stats.inFlight.sum(), "method", method));
+
+        out.family("messenger_grpc_calls_failed_total", "counter", "Calls that ended with a non-OK status");
+        methods.forEach((method, stats) -> stats.failed.forEach((code, count) ->
+                out.sample("messenger_grpc_calls_failed_total", count.sum(), "method", method, "code", code.name())));
+
+        out.family("messenger_grpc_call_duration_seconds", "summary", "Call duration per method");
+        methods.forEach((method, stats) ->
+        {
+            for (double quantile : new double[]{0.5, 0.99, 0.999})
+            {
+                out.sample("messenger_grpc_call_duration_seconds", stats.duration.percentile(quantile * 100) / 1e6,
+                        "method", method, "quantile", Double.toString(quantile));
+            }
+            out.sample("messenger_grpc_call_duration_seconds_sum", stats.duration.sumMicros() / 1e6, "method", method);
+            out.sample("messenger_grpc_call_duration_seconds_count", stats.duration.count(), "method", method);
+        });
+    }
+}
@@ -0,0 +1,255 @@
+package messenger;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// Per-stream mailbox: any number of threads offer without taking a lock, and a single drain task at a time
+// owns the observer, so onNext/onError/onCompleted never run concurrently for one stream
+public class OutboundQueue
+{
+    public enum OverflowPolicy
+    {
+        DROP_OLDEST,
+        DISCONNECT,
+        SPILL
+    }
+
+    private static final int DRAIN_BATCH = 64;
+
+    private final StreamObserver<SerializedMessage> observer;
+    private final ServerCallStreamObserver<SerializedMessage> serverObserver;
+    private final Queue<SerializedMessage> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final int capacity;
+    private final Executor executor;
+    private final OverflowPolicy policy;
+    private final Consumer<SerializedMessage> spill;
+    private final Consumer<SerializedMessage> onDrop;
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder spilled = new LongAdder();
+    private volatile Iterator<SerializedMessage> backlog;
+    private volatile Status failure;
+    private volatile boolean completing;
+    private volatile boolean closed;
+
+    public OutboundQueue(StreamObserver<SerializedMessage> observer, int capacity, Executor executor,
+                         OverflowPolicy policy, Consumer<SerializedMessage> spill, Consumer<SerializedMessage> onDrop)
+    {
+        this.observer = observer;
+        this.capacity = capacity;
+        this.executor = executor;
+        this.policy = policy;
+        this.spill = spill;
+        this.onDrop = onDrop;
+
+        // Only server streams expose transport readiness; anything else is treated as always ready
+        if (observer instanceof ServerCallStreamObserver)
+        {
+            this.serverObserver = (ServerCallStreamObserver<SerializedMessage>) observer;
+            this.serverObserver.setOnReadyHandler(this::scheduleDrain);
+        }
+        else
+        {
+            this.serverObserver = null;
+        }
+    }
+
+    public boolean offer(Messenger.MessageResponse msg)
+    {
+        return offer(SerializedMessage.of(msg));
+    }
+
+    public boolean offer(SerializedMessage msg)
+    {
+        if (closed || completing || failure != null) return false;
+
+        while (!enqueue(msg))
+        {
+            if (policy == OverflowPolicy.DISCONNECT)
+            {
+                failure = Status.RESOURCE_EXHAUSTED.withDescription("Outbound buffer overflow");
+                countDrop(msg);
+                scheduleDrain();
+                return false;
+            }
+
+            if (policy == OverflowPolicy.SPILL && spill != null)
+            {
+                spill.accept(msg);
+                spilled.increment();
+                return true;
+            }
+
+            SerializedMessage oldest = dequeue();
+            if (oldest != null) countDrop(oldest);
+        }
+
+        scheduleDrain();
+        return true;
+    }
+
+    public int depth()
+    {
+        return size.get();
+    }
+
+    public long dropped()
+    {
+        return dropped.sum();
+    }
+
+    public long spilled()
+    {
+        return spilled.sum();
+    }
+
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+    // Sent ahead of everything offered so far, pulled lazily as the stream becomes ready
+    public void replay(Iterator<SerializedMessage> messages)
+    {
+        backlog = messages;
+        scheduleDrain();
+    }
+
+    // Terminates the stream from the delivery thread so it never races an in-flight onNext
+    public void fail(Status status)
+    {
+        failure = status;
+        scheduleDrain();
+    }
+
+    // Drops what is queued and completes the stream, from the delivery thread like fail
+    public void end()
+    {
+        fail(Status.OK);
+    }
+
+    // Flushes what is already queued, then completes the stream
+    public void complete()
+    {
+        completing = true;
+        scheduleDrain();
+    }
+
+    public void close()
+    {
+        closed = true;
+        backlog = null;
+        while (dequeue() != null)
+        {
+        }
+    }
+
+    // The slot is reserved before the node is linked, so a concurrent poll may briefly see fewer messages
+    // than depth(); the producer schedules a drain after linking, so nothing is left behind
+    private boolean enqueue(SerializedMessage msg)
+    {
+        int current;
+        do
+        {
+            current = size.get();
+            if (current >= capacity) return false;
+        }
+        while (!size.compareAndSet(current, current + 1));
+
+        queue.offer(msg);
+        return true;
+    }
+
+    private SerializedMessage dequeue()
+    {
+        SerializedMessage msg = queue.poll();
+        if (msg != null) size.decrementAndGet();
+        return msg;
+    }
+
+    // Gets the message that is lost: the oldest one under DROP_OLDEST, the refused one under DISCONNECT
+    private void countDrop(SerializedMessage msg)
+    {
+        dropped.increment();
+        onDrop.accept(msg);
+    }
+
+    private boolean isReady()
+    {
+        return serverObserver == null || serverObserver.isReady();
+    }
+
+    private void scheduleDrain()
+    {
+        if (draining.compareAndSet(false, true))
+        {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain()
+    {
+        try
+        {
+            Status failed = failure;
+            if (failed != null)
+            {
+                if (!closed)
+                {
+                    close();
+                    if (failed.isOk()) observer.onCompleted();
+                    else observer.onError(failed.asRuntimeException());
+                }
+                return;
+            }
+
+            Iterator<SerializedMessage> pending = backlog;
+            int sent = 0;
+            while (!closed && sent < DRAIN_BATCH && isReady())
+            {
+                SerializedMessage msg;
+                if (pending != null && pending.hasNext())
+                {
+                    msg = pending.next();
+                }
+                else
+                {
+                    if (pending != null) backlog = pending = null;
+                    if ((msg = dequeue()) == null) break;
+                }
+                observer.onNext(msg);
+                sent++;
+            }
+
+            if (completing && !closed && backlog == null && queue.isEmpty())
+            {
+                close();
+                observer.onCompleted();
+                return;
+            }
+        }
+        catch (RuntimeException ex)
+        {
+            close();
+        }
+        finally
+        {
+            draining.set(false);
+        }
+
+        // The ready handler or a producer may have fired while the flag was still held
+        boolean hasMore = backlog != null || !queue.isEmpty();
+        if (!closed && (failure != null || completing && !hasMore || hasMore && isReady())) scheduleDrain();
+    }
+}
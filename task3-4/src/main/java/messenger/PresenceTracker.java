@@ -0,0 +1,159 @@
+package messenger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+// Versioned view of who is online. Joins and leaves are collected for a short window and flushed as one
+// delta, so a reconnect storm costs one update per window per stream instead of one per user. Changes that
+// cancel out inside a window (a quick reconnect) are never sent. Recent deltas are kept, so a client that
+// knows an older version catches up with a delta instead of the full list.
+public class PresenceTracker implements AutoCloseable
+{
+    private record Delta(long version, List<String> joined, List<String> left)
+    {
+    }
+
+    private record Change(boolean online, boolean local)
+    {
+    }
+
+    private final long windowMillis;
+    private final int logSize;
+    // (update for local streams, the part of it that originated on this node)
+    private final BiConsumer<Messenger.PresenceUpdate, Messenger.PresenceUpdate> onFlush;
+    private final ScheduledExecutorService flusher =
+            Executors.newSingleThreadScheduledExecutor(Threads.daemon("presence-flush"));
+    // Written under the monitor, read without it by isOnline on the send path
+    private final Set<String> online = ConcurrentHashMap.newKeySet();
+    private final Map<String, Change> pending = new LinkedHashMap<>();
+    private final Deque<Delta> log = new ArrayDeque<>();
+    private long version;
+    private boolean scheduled;
+
+    public PresenceTracker(long windowMillis, int logSize,
+                           BiConsumer<Messenger.PresenceUpdate, Messenger.PresenceUpdate> onFlush)
+    {
+        this.windowMillis = windowMillis;
+        this.logSize = logSize;
+        this.onFlush = onFlush;
+    }
+
+    // local: the user is connected to this node, so the change is passed on to the rest of the cluster
+    public synchronized void set(String username, boolean isOnline, boolean local)
+    {
+        pending.put(username, new Change(isOnline, local));
+        if (!scheduled)
+        {
+            scheduled = true;
+            flusher.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Users known before this node started listening; no delta is produced for them
+    public synchronized void seed(Iterable<String> usernames)
+    {
+        for (String username : usernames) online.add(username);
+    }
+
+    // As of the last flush, so up to one window behind
+    public boolean isOnline(String username)
+    {
+        return online.contains(username);
+    }
+
+    public synchronized long version()
+    {
+        return version;
+    }
+
+    public synchronized Messenger.PresenceUpdate snapshot()
+    {
+        return Messenger.PresenceUpdate.newBuilder()
+                .setVersion(version)
+                .setSnapshot(true)
+                .addAllUsers(online)
+                .build();
+    }
+
+    public synchronized Messenger.PresenceUpdate since(long known)
+    {
+        if (known <= 0 || known > version) return snapshot();
+        if (known < version && (log.isEmpty() || log.peekFirst().version() > known + 1)) return snapshot();
+
+        // Later entries win, so a user who joined and left again since `known` ends up in `left`
+        Map<String, Boolean> merged = new LinkedHashMap<>();
+        for (Delta delta : log)
+        {
+            if (delta.version() <= known) continue;
+            for (String username : delta.joined()) merged.put(username, true);
+            for (String username : delta.left()) merged.put(username, false);
+        }
+
+        Messenger.PresenceUpdate.Builder update = Messenger.PresenceUpdate.newBuilder().setVersion(version);
+        merged.forEach((username, isOnline) ->
+        {
+            if (isOnline) update.addJoined(username);
+            else update.addLeft(username);
+        });
+        return update.build();
+    }
+
+    void flush()
+    {
+        Messenger.PresenceUpdate update;
+        Messenger.PresenceUpdate.Builder origin = Messenger.PresenceUpdate.newBuilder();
+        synchronized (this)
+        {
+            scheduled = false;
+            List<String> joined = new ArrayList<>();
+            List<String> left = new ArrayList<>();
+            for (Map.Entry<String, Change> entry : pending.entrySet())
+            {
+                String username = entry.getKey();
+                Change change = entry.getValue();
+                boolean changed = change.online() ? online.add(username) : online.remove(username);
+                if (!changed) continue;
+
+                if (change.online()) joined.add(username);
+                else left.add(username);
+                if (change.local())
+                {
+                    if (change.online()) origin.addJoined(username);
+                    else origin.addLeft(username);
+                }
+            }
+            pending.clear();
+            if (joined.isEmpty() && left.isEmpty()) return;
+
+            version++;
+            log.addLast(new Delta(version, joined, left));
+            if (log.size() > logSize) log.removeFirst();
+
+            update = Messenger.PresenceUpdate.newBuilder()
+                    .setVersion(version)
+                    .addAllJoined(joined)
+                    .addAllLeft(left)
+                    .build();
+            origin.setVersion(version);
+        }
+
+        // Flushes run on one thread, so streams see versions in order
+        onFlush.accept(update, origin.build());
+    }
+
+    @Override
+    public void close()
+    {
+        flusher.shutdownNow();
+    }
+}
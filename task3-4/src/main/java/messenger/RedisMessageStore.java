@@ -0,0 +1,294 @@
+package messenger;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.resps.ScanResult;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+public class RedisMessageStore implements MessageStore
+{
+    private static final String INBOX_PREFIX = "inbox:";
+    private static final String SECRET_PREFIX = "inbox-secret:";
+    private static final String LEGACY_PREFIX = "msg:";
+    private static final String CHANNEL_PREFIX = "channel:";
+    private static final int DRAIN_PAGE = 256;
+    private static final int DEFAULT_COMPRESS_ABOVE = 256;
+    private static final int DEFAULT_SPILL_LIMIT = 10_000;
+    private static final int DEFAULT_SPILL_TTL_SECONDS = 86_400;
+
+    private final JedisPool pool;
+    private final int compressAbove;
+    private final int spillLimit;
+    private final int spillTtlSeconds;
+
+    public RedisMessageStore(String host, int port, int connections)
+    {
+        this(host, port, connections, DEFAULT_COMPRESS_ABOVE);
+    }
+
+    public RedisMessageStore(String host, int port, int connections, int compressAbove)
+    {
+        this(host, port, connections, compressAbove, DEFAULT_SPILL_LIMIT, DEFAULT_SPILL_TTL_SECONDS);
+    }
+
+    // Inbox entries larger than compressAbove bytes are deflated; -1 never compresses. A spill list keeps
+    // its newest spillLimit messages and goes spillTtlSeconds after the last one if nobody comes for them.
+    public RedisMessageStore(String host, int port, int connections, int compressAbove, int spillLimit,
+                             int spillTtlSeconds)
+    {
+        this.compressAbove = compressAbove;
+        this.spillLimit = spillLimit;
+        this.spillTtlSeconds = spillTtlSeconds;
+        JedisPoolConfig config = new JedisPoolConfig();
+        config.setMaxTotal(connections);
+        config.setMaxIdle(connections);
+        config.setMinIdle(Math.min(2, connections));
+        config.setJmxEnabled(false);
+        this.pool = new JedisPool(config, host, port);
+    }
+
+    @Override
+    public void storeMessage(String from, String to, String content, boolean secret, int ttlSeconds)
+    {
+        storeMessages(List.of(new OfflineMessage(from, to, content, secret, ttlSeconds)));
+    }
+
+    @Override
+    public void storeMessages(List<OfflineMessage> messages)
+    {
+        long now = System.currentTimeMillis();
+        try (Jedis jedis = pool.getResource())
+        {
+            Pipeline pipeline = jedis.pipelined();
+            for (OfflineMessage message : messages) append(pipeline, message, now);
+            pipeline.sync();
+        }
+    }
+
+    // A secret is kept in a key of its own that Redis expires with it, and the inbox only refers to that key,
+    // so its content is gone on time even if the recipient never comes back
+    private void append(Pipeline pipeline, OfflineMessage message, long now)
+    {
+        long expiresAt = message.secret() ? now + message.ttlSeconds() * 1000L : 0;
+        byte[] entry = InboxCodec.encode(expiresAt, message.from(), message.content(), message.secret(), compressAbove);
+        if (!message.secret())
+        {
+            pipeline.rpush(inboxKey(message.to()), entry);
+            return;
+        }
+
+        byte[] key = (SECRET_PREFIX + UUID.randomUUID()).getBytes(StandardCharsets.UTF_8);
+        pipeline.setex(key, Math.max(1, message.ttlSeconds()), entry);
+        pipeline.rpush(inboxKey(message.to()), InboxCodec.reference(key));
+    }
+
+    @Override
+    public List<StoredMessage> drainMessages(String username)
+    {
+        byte[] key = inboxKey(username);
+        List<StoredMessage> messages = new ArrayList<>();
+        long now = System.currentTimeMillis();
+
+        try (Jedis jedis = pool.getResource())
+        {
+            List<byte[]> page;
+            do
+            {
+                // LRANGE + LTRIM in one MULTI: one round trip per page, and concurrent RPUSHes are never lost
+                Transaction transaction = jedis.multi();
+                Response<List<byte[]>> range = transaction.lrange(key, 0, DRAIN_PAGE - 1);
+                transaction.ltrim(key, DRAIN_PAGE, -1);
+                transaction.exec();
+
+                page = range.get();
+                List<byte[]> secrets = takeReferenced(jedis, page);
+                int next = 0;
+                for (byte[] element : page)
+                {
+                    // A secret whose key has expired resolves to null and is skipped
+                    byte[] entry = InboxCodec.referencedKey(element) == null ? element : secrets.get(next++);
+                    StoredMessage message = entry == null ? null : InboxCodec.decode(entry, now);
+                    if (message != null) messages.add(message);
+                }
+            }
+            while (page.size() == DRAIN_PAGE);
+        }
+        return messages;
+    }
+
+    // The entries behind the page's reference elements, in order, deleted as they are read
+    private static List<byte[]> takeReferenced(Jedis jedis, List<byte[]> page)
+    {
+        List<byte[]> keys = new ArrayList<>();
+        for (byte[] element : page)
+        {
+            byte[] key = InboxCodec.referencedKey(element);
+            if (key != null) keys.add(key);
+        }
+        if (keys.isEmpty()) return List.of();
+
+        byte[][] names = keys.toArray(new byte[0][]);
+        Pipeline pipeline = jedis.pipelined();
+        Response<List<byte[]>> entries = pipeline.mget(names);
+        pipeline.del(names);
+        pipeline.sync();
+        return entries.get();
+    }
+
+    // Offline messages of the server before inboxes, one msg:<user>:<uuid> hash each. Moved into the inboxes
+    // once at startup; DEL picks the node that moves a hash when several start together.
+    public int migrateLegacyMessages()
+    {
+        int moved = 0;
+        long now = System.currentTimeMillis();
+        ScanParams params = new ScanParams().match(LEGACY_PREFIX + "*").count(DRAIN_PAGE);
+        try (Jedis jedis = pool.getResource())
+        {
+            String cursor = ScanParams.SCAN_POINTER_START;
+            do
+            {
+                ScanResult<String> scan = jedis.scan(cursor, params);
+                cursor = scan.getCursor();
+
+                Pipeline pipeline = jedis.pipelined();
+                List<Response<Map<String, String>>> hashes = new ArrayList<>();
+                List<Response<Long>> ttls = new ArrayList<>();
+                for (String key : scan.getResult())
+                {
+                    hashes.add(pipeline.hgetAll(key));
+                    ttls.add(pipeline.pttl(key));
+                }
+                pipeline.sync();
+
+                List<OfflineMessage> messages = new ArrayList<>();
+                for (int i = 0; i < hashes.size(); i++)
+                {
+                    String key = scan.getResult().get(i);
+                    Map<String, String> hash = hashes.get(i).get();
+                    if (key.lastIndexOf(':') <= LEGACY_PREFIX.length() || hash.isEmpty() || jedis.del(key) == 0) continue;
+
+                    boolean secret = Boolean.parseBoolean(hash.getOrDefault("secret", "false"));
+                    long ttlMillis = ttls.get(i).get();
+                    // A secret saved without a lifetime left has already expired
+                    if (secret && ttlMillis <= 0) continue;
+                    messages.add(new OfflineMessage(hash.getOrDefault("from", ""),
+                            key.substring(LEGACY_PREFIX.length(), key.lastIndexOf(':')), hash.getOrDefault("content", ""),
+                            secret, secret ? (int) ((ttlMillis + 999) / 1000) : 0));
+                }
+
+                Pipeline moves = jedis.pipelined();
+                for (OfflineMessage message : messages) append(moves, message, now);
+                moves.sync();
+                moved += messages.size();
+            }
+            while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+        }
+        return moved;
+    }
+
+    @Override
+    public void saveChannel(String id, String creator, List<String> tags)
+    {
+        try (Jedis jedis = pool.getResource())
+        {
+            jedis.hset(CHANNEL_PREFIX + id, Map.of(
+                    "creator", creator,
+                    "tags", String.join(",", tags)
+            ));
+        }
+    }
+
+    // SCAN rather than KEYS, so a large catalogue does not stall Redis; each page of hashes is one pipeline
+    @Override
+    public List<ChannelDirectory.ChannelInfo> loadChannels()
+    {
+        List<ChannelDirectory.ChannelInfo> loaded = new ArrayList<>();
+        ScanParams params = new ScanParams().match(CHANNEL_PREFIX + "*").count(DRAIN_PAGE);
+        try (Jedis jedis = pool.getResource())
+        {
+            String cursor = ScanParams.SCAN_POINTER_START;
+            do
+            {
+                ScanResult<String> scan = jedis.scan(cursor, params);
+                cursor = scan.getCursor();
+
+                Pipeline pipeline = jedis.pipelined();
+                List<Response<Map<String, String>>> hashes = new ArrayList<>();
+                for (String key : scan.getResult()) hashes.add(pipeline.hgetAll(key));
+                pipeline.sync();
+
+                for (int i = 0; i < hashes.size(); i++)
+                {
+                    Map<String, String> hash = hashes.get(i).get();
+                    if (hash.isEmpty()) continue;
+
+                    String tags = hash.getOrDefault("tags", "");
+                    loaded.add(new ChannelDirectory.ChannelInfo(
+                            scan.getResult().get(i).substring(CHANNEL_PREFIX.length()),
+                            hash.getOrDefault("creator", ""),
+                            tags.isEmpty() ? List.of() : Arrays.asList(tags.split(","))));
+                }
+            }
+            while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+        }
+        return loaded;
+    }
+
+    @Override
+    public void spill(String key, byte[] message)
+    {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        try (Jedis jedis = pool.getResource())
+        {
+            Pipeline pipeline = jedis.pipelined();
+            pipeline.rpush(rawKey, message);
+            pipeline.ltrim(rawKey, -spillLimit, -1);
+            pipeline.expire(rawKey, spillTtlSeconds);
+            pipeline.sync();
+        }
+    }
+
+    @Override
+    public List<byte[]> takeSpilled(String key)
+    {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        try (Jedis jedis = pool.getResource())
+        {
+            Transaction transaction = jedis.multi();
+            Response<List<byte[]>> spilled = transaction.lrange(rawKey, 0, -1);
+            transaction.del(rawKey);
+            transaction.exec();
+            return spilled.get();
+        }
+    }
+
+    private static byte[] inboxKey(String username)
+    {
+        return (INBOX_PREFIX + username).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void registerMetrics(Metrics metrics)
+    {
+        metrics.gauge("messenger_redis_pool_active", "Redis connections in use", pool::getNumActive);
+        metrics.gauge("messenger_redis_pool_idle", "Idle Redis connections", pool::getNumIdle);
+        metrics.gauge("messenger_redis_pool_waiters", "Threads waiting for a Redis connection", pool::getNumWaiters);
+    }
+
+    @Override
+    public void close()
+    {
+        pool.close();
+    }
+}
@@ -0,0 +1,100 @@
+package messenger;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// A MessageResponse together with its wire bytes, serialized at most once no matter how many
+// streams it is written to. The byte array is immutable and shared by every stream's queue;
+// it becomes garbage once the last queue has written it.
+public final class SerializedMessage
+{
+    public static final MethodDescriptor.Marshaller<SerializedMessage> MARSHALLER = new Marshaller();
+
+    private final Messenger.MessageResponse message;
+    private volatile byte[] bytes;
+
+    private SerializedMessage(Messenger.MessageResponse message, byte[] bytes)
+    {
+        this.message = message;
+        this.bytes = bytes;
+    }
+
+    public static SerializedMessage of(Messenger.MessageResponse message)
+    {
+        return new SerializedMessage(message, null);
+    }
+
+    public static SerializedMessage parseFrom(byte[] raw) throws InvalidProtocolBufferException
+    {
+        return new SerializedMessage(Messenger.MessageResponse.parseFrom(raw), raw);
+    }
+
+    public Messenger.MessageResponse message()
+    {
+        return message;
+    }
+
+    public byte[] bytes()
+    {
+        byte[] serialized = bytes;
+        if (serialized == null)
+        {
+            // Racing writers may both serialize, but the result is identical and only one is kept
+            serialized = message.toByteArray();
+            bytes = serialized;
+        }
+        return serialized;
+    }
+
+    private static final class Marshaller implements MethodDescriptor.Marshaller<SerializedMessage>
+    {
+        @Override
+        public InputStream stream(SerializedMessage value)
+        {
+            return new SharedBytesStream(value.bytes());
+        }
+
+        @Override
+        public SerializedMessage parse(InputStream stream)
+        {
+            try
+            {
+                return parseFrom(stream.readAllBytes());
+            }
+            catch (InvalidProtocolBufferException e)
+            {
+                throw Status.INTERNAL.withDescription("Invalid MessageResponse").withCause(e).asRuntimeException();
+            }
+            catch (IOException e)
+            {
+                throw Status.INTERNAL.withDescription("Failed to read MessageResponse").withCause(e).asRuntimeException();
+            }
+        }
+    }
+
+    // Drainable lets the transport copy straight from the shared array instead of reading through a buffer
+    private static final class SharedBytesStream extends ByteArrayInputStream implements KnownLength, Drainable
+    {
+        SharedBytesStream(byte[] bytes)
+        {
+            super(bytes);
+        }
+
+        @Override
+        public int drainTo(OutputStream target) throws IOException
+        {
+            int length = count - pos;
+            target.write(buf, pos, length);
+            pos = count;
+            return length;
+        }
+    }
+}
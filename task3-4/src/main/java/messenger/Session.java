@@ -0,0 +1,112 @@
+package messenger;
+
+// Per-user server state: presence and the stream that direct messages, presence and delete
+// signals are delivered to. Either a legacy Connect + ReceiveMessages pair or one Session call.
+public class Session
+{
+    private final String username;
+    private final boolean bidirectional;
+    private final DeliveryWindow window;
+    private final long createdNanos = System.nanoTime();
+    private volatile OutboundQueue stream;
+    private volatile boolean online;
+
+    public Session(String username)
+    {
+        this(username, null, false);
+    }
+
+    public Session(String username, OutboundQueue stream, boolean bidirectional)
+    {
+        this(username, stream, bidirectional, null);
+    }
+
+    // window: only for sessions whose client acknowledges direct messages
+    public Session(String username, OutboundQueue stream, boolean bidirectional, DeliveryWindow window)
+    {
+        this.username = username;
+        this.window = window;
+        this.stream = stream;
+        this.bidirectional = bidirectional;
+        this.online = bidirectional;
+    }
+
+    public String username()
+    {
+        return username;
+    }
+
+    public boolean isBidirectional()
+    {
+        return bidirectional;
+    }
+
+    public long createdNanos()
+    {
+        return createdNanos;
+    }
+
+    public DeliveryWindow window()
+    {
+        return window;
+    }
+
+    public OutboundQueue stream()
+    {
+        return stream;
+    }
+
+    public void attach(OutboundQueue stream)
+    {
+        this.stream = stream;
+    }
+
+    public boolean isOnline()
+    {
+        return online;
+    }
+
+    public void setOnline(boolean online)
+    {
+        this.online = online;
+    }
+
+    public boolean isAlive()
+    {
+        OutboundQueue current = stream;
+        return current != null && !current.isClosed();
+    }
+
+    public boolean isReachable()
+    {
+        return online && isAlive();
+    }
+
+    // A direct message: numbered and tracked when the session acks, offered as is otherwise
+    public boolean deliver(Messenger.MessageResponse msg)
+    {
+        OutboundQueue current = stream;
+        if (current == null) return false;
+        return window != null ? window.deliver(msg, current) : current.offer(msg);
+    }
+
+    // Same, for messages replayed from the offline inbox
+    public boolean replay(Messenger.MessageResponse msg)
+    {
+        OutboundQueue current = stream;
+        if (current == null) return false;
+        return window != null ? window.replay(msg, current) : current.offer(msg);
+    }
+
+    public boolean offer(SerializedMessage msg)
+    {
+        OutboundQueue current = stream;
+        return current != null && current.offer(msg);
+    }
+
+    public boolean offer(Messenger.MessageResponse msg)
+    {
+        OutboundQueue current = stream;
+        return current != null && current.offer(msg);
+    }
+}
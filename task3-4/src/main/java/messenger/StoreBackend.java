@@ -0,0 +1,9 @@
+package messenger;
+
+public enum StoreBackend
+{
+    // Shared by every node, survives restarts
+    REDIS,
+    // This process only; for single-node runs and measuring the server without Redis round trips
+    MEMORY
+}
@@ -0,0 +1,131 @@
+package messenger;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Channel -> subscribers, built for fan-out: dispatchers iterate an immutable array snapshot without locks or
+// allocation, while the comparatively rare subscribe and compaction copy the array under the channel's monitor.
+// Cancelling closes the queue, which takes it out of delivery at once; the array drops closed entries once
+// they make up a quarter of it, so removal is O(1) amortized.
+public class SubscriberRegistry
+{
+    public record Subscriber(OutboundQueue queue, boolean acceptsBatches)
+    {
+    }
+
+    private static final Subscriber[] EMPTY = new Subscriber[0];
+
+    private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+
+    public void add(String channelId, OutboundQueue queue, boolean acceptsBatches)
+    {
+        Subscriber subscriber = new Subscriber(queue, acceptsBatches);
+        while (true)
+        {
+            Channel channel = channels.computeIfAbsent(channelId, Channel::new);
+            if (channel.add(subscriber)) return;
+            // Raced with the channel being retired after its last subscriber left; take the fresh one
+        }
+    }
+
+    public void remove(String channelId, OutboundQueue queue)
+    {
+        queue.close();
+        Channel channel = channels.get(channelId);
+        if (channel != null) channel.closedOne();
+    }
+
+    public Subscriber[] snapshot(String channelId)
+    {
+        Channel channel = channels.get(channelId);
+        return channel == null ? EMPTY : channel.subscribers;
+    }
+
+    // For dispatchers that ran into queues closed by something other than remove (overflow, transport errors)
+    public void compact(String channelId)
+    {
+        Channel channel = channels.get(channelId);
+        if (channel != null) channel.compact();
+    }
+
+    // Compacts every channel, including ones whose closed queues no publish has run into; returns how many
+    // subscribers were dropped
+    public int compactAll()
+    {
+        int removed = 0;
+        for (Channel channel : channels.values()) removed += channel.compact();
+        return removed;
+    }
+
+    public boolean isEmpty(String channelId)
+    {
+        return snapshot(channelId).length == 0;
+    }
+
+    public Set<String> channelIds()
+    {
+        return channels.keySet();
+    }
+
+    private final class Channel
+    {
+        private final String id;
+        private volatile Subscriber[] subscribers = EMPTY;
+        private int closed;
+        private boolean retired;
+
+        Channel(String id)
+        {
+            this.id = id;
+        }
+
+        synchronized boolean add(Subscriber subscriber)
+        {
+            if (retired) return false;
+
+            Subscriber[] current = subscribers;
+            Subscriber[] next = new Subscriber[current.length + 1];
+            int i = copyLive(current, next);
+            next[i++] = subscriber;
+            subscribers = i == next.length ? next : Arrays.copyOf(next, i);
+            closed = 0;
+            return true;
+        }
+
+        synchronized void closedOne()
+        {
+            if (++closed * 4 >= subscribers.length) compact();
+        }
+
+        synchronized int compact()
+        {
+            Subscriber[] current = subscribers;
+            Subscriber[] next = new Subscriber[current.length];
+            int live = copyLive(current, next);
+            if (live == current.length) return 0;
+
+            subscribers = live == 0 ? EMPTY : Arrays.copyOf(next, live);
+            closed = 0;
+
+            if (live == 0)
+            {
+                retired = true;
+                channels.remove(id, this);
+            }
+            return current.length - live;
+        }
+
+        // One pass: queues close outside the monitor, so counting first and copying second could leave null slots
+        private static int copyLive(Subscriber[] from, Subscriber[] to)
+        {
+            int i = 0;
+            for (Subscriber s : from)
+            {
+                if (!s.queue().isClosed()) to[i++] = s;
+            }
+            return i;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package messenger;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+final class Threads
+{
+    private Threads()
+    {
+    }
+
+    static ThreadFactory daemon(String prefix)
+    {
+        AtomicInteger counter = new AtomicInteger();
+        return r ->
+        {
+            Thread thread = new Thread(r, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
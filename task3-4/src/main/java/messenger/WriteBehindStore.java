@@ -0,0 +1,278 @@
+package messenger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Offline messages are queued and written to the backing store by one thread, in batches closed by size or
+// by a time window opened with the first message, so a send to an offline user never waits on the store.
+// Spilled channel messages take the same queue, which keeps Redis off the fan-out dispatchers.
+// A drain first waits for everything queued before it, so inbox order and replay on connect are unchanged.
+// Everything else passes straight through.
+public class WriteBehindStore implements MessageStore
+{
+    private static final int WRITE_ATTEMPTS = 4;
+    private static final long RETRY_BACKOFF_MILLIS = 50;
+
+    // A message to write, a spill, or a drain waiting for what was queued before it
+    private record Pending(OfflineMessage message, Spill spill, CountDownLatch flushed)
+    {
+    }
+
+    private record Spill(String key, byte[] message)
+    {
+    }
+
+    private final MessageStore delegate;
+    private final int batchSize;
+    private final long windowNanos;
+    private final BlockingQueue<Pending> pending;
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final Thread writer;
+    // Offers check closed and enqueue under the read lock, so none is still on its way in once close() has
+    // taken the write lock, and none gets past it until the last flush is done
+    private final ReadWriteLock closing = new ReentrantReadWriteLock();
+    private volatile boolean closed;
+
+    public WriteBehindStore(MessageStore delegate, int batchSize, long windowMillis, int queueLimit)
+    {
+        this.delegate = delegate;
+        this.batchSize = batchSize;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.pending = new ArrayBlockingQueue<>(queueLimit);
+        this.writer = Threads.daemon("store-write-behind").newThread(this::writeLoop);
+        writer.start();
+    }
+
+    // Blocks only when the queue is full, which pushes back on senders instead of growing without bound
+    @Override
+    public void storeMessage(String from, String to, String content, boolean secret, int ttlSeconds)
+    {
+        OfflineMessage message = new OfflineMessage(from, to, content, secret, ttlSeconds);
+        if (!offer(new Pending(message, null, null))) delegate.storeMessages(List.of(message));
+    }
+
+    @Override
+    public List<StoredMessage> drainMessages(String username)
+    {
+        flush();
+        return delegate.drainMessages(username);
+    }
+
+    // Returns once everything queued before the call has been handed to the backing store
+    public void flush()
+    {
+        CountDownLatch flushed = new CountDownLatch(1);
+        if (offer(new Pending(null, null, flushed))) await(flushed);
+    }
+
+    private static void await(CountDownLatch flushed)
+    {
+        try
+        {
+            flushed.await();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void saveChannel(String id, String creator, List<String> tags)
+    {
+        delegate.saveChannel(id, creator, tags);
+    }
+
+    @Override
+    public List<ChannelDirectory.ChannelInfo> loadChannels()
+    {
+        return delegate.loadChannels();
+    }
+
+    @Override
+    public void spill(String key, byte[] message)
+    {
+        if (!offer(new Pending(null, new Spill(key, message), null))) delegate.spill(key, message);
+    }
+
+    @Override
+    public List<byte[]> takeSpilled(String key)
+    {
+        flush();
+        return delegate.takeSpilled(key);
+    }
+
+    @Override
+    public void registerMetrics(Metrics metrics)
+    {
+        metrics.gauge("messenger_store_write_behind_pending", "Offline messages waiting to be written", pending::size);
+        metrics.counter("messenger_store_write_behind_batches_total", "Offline message batches written", batches::sum);
+        metrics.counter("messenger_store_write_behind_retries_total", "Offline message batches written again",
+                retries::sum);
+        metrics.counter("messenger_store_write_behind_failed_total", "Offline and spilled messages the store rejected",
+                failed::sum);
+        delegate.registerMetrics(metrics);
+    }
+
+    // From here on messages go straight to the backing store. Senders wait out the last flush first, so they
+    // are not written ahead of what was already queued.
+    @Override
+    public void close()
+    {
+        closing.writeLock().lock();
+        try
+        {
+            closed = true;
+            CountDownLatch flushed = new CountDownLatch(1);
+            if (enqueue(new Pending(null, null, flushed))) await(flushed);
+        }
+        finally
+        {
+            closing.writeLock().unlock();
+        }
+        writer.interrupt();
+        delegate.close();
+    }
+
+    // False once closed or when interrupted; the caller then writes through itself
+    private boolean offer(Pending entry)
+    {
+        closing.readLock().lock();
+        try
+        {
+            return !closed && enqueue(entry);
+        }
+        finally
+        {
+            closing.readLock().unlock();
+        }
+    }
+
+    private boolean enqueue(Pending entry)
+    {
+        try
+        {
+            pending.put(entry);
+            return true;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void writeLoop()
+    {
+        List<OfflineMessage> batch = new ArrayList<>(batchSize);
+        List<Spill> spills = new ArrayList<>();
+        try
+        {
+            while (true)
+            {
+                Pending next = pending.take();
+                long deadline = System.nanoTime() + windowNanos;
+                CountDownLatch flushed = null;
+                while (next != null)
+                {
+                    // A drain is waiting: write what we have now instead of at the end of the window
+                    if (next.flushed() != null)
+                    {
+                        flushed = next.flushed();
+                        break;
+                    }
+                    if (next.spill() != null) spills.add(next.spill());
+                    else batch.add(next.message());
+                    if (batch.size() + spills.size() >= batchSize) break;
+                    next = pending.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                }
+
+                write(batch);
+                spill(spills);
+                batch.clear();
+                spills.clear();
+                if (flushed != null) flushed.countDown();
+            }
+        }
+        catch (InterruptedException ignored)
+        {
+        }
+    }
+
+    // A failed batch is written again after a doubling pause; meanwhile the queue fills and pushes back on
+    // senders. A pipeline that broke midway may have stored part of it, so those messages can arrive twice,
+    // as unacked ones already can. Whatever still fails is written one by one, so only the messages the store
+    // keeps rejecting are dropped.
+    private void write(List<OfflineMessage> batch)
+    {
+        if (batch.isEmpty()) return;
+        long backoff = RETRY_BACKOFF_MILLIS;
+        for (int attempt = 1; attempt <= WRITE_ATTEMPTS; attempt++)
+        {
+            try
+            {
+                delegate.storeMessages(batch);
+                batches.increment();
+                return;
+            }
+            catch (RuntimeException e)
+            {
+                Log.warn("Failed to store " + batch.size() + " offline messages (attempt " + attempt + "): "
+                        + e.getMessage());
+            }
+            if (attempt == WRITE_ATTEMPTS) break;
+
+            try
+            {
+                Thread.sleep(backoff);
+            }
+            catch (InterruptedException e)
+            {
+                // Closing: one last go below, then the loop sees the interrupt
+                Thread.currentThread().interrupt();
+                break;
+            }
+            backoff *= 2;
+            retries.increment();
+        }
+
+        for (OfflineMessage message : batch)
+        {
+            try
+            {
+                delegate.storeMessages(List.of(message));
+            }
+            catch (RuntimeException e)
+            {
+                failed.increment();
+                Log.error("Dropping offline message for " + message.to() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // In queue order, so a stream replays its spilled messages as they overflowed
+    private void spill(List<Spill> spills)
+    {
+        for (Spill spill : spills)
+        {
+            try
+            {
+                delegate.spill(spill.key(), spill.message());
+            }
+            catch (RuntimeException e)
+            {
+                failed.increment();
+                Log.error("Dropping spilled message for " + spill.key() + ": " + e.getMessage());
+            }
+        }
+    }
+}
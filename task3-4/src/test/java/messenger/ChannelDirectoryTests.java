@@ -0,0 +1,87 @@
+package messenger;
+
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ChannelDirectoryTests
+{
+    private static OutboundQueue queue()
+    {
+        return new OutboundQueue(new StreamObserver<>()
+        {
+            @Override
+            public void onNext(SerializedMessage value)
+            {
+            }
+
+            @Override
+            public void onError(Throwable t)
+            {
+            }
+
+            @Override
+            public void onCompleted()
+            {
+            }
+        }, 16, Runnable::run, OutboundQueue.OverflowPolicy.DROP_OLDEST, null, msg -> { });
+    }
+
+    @Test
+    void searchFollowsPageTokensThroughMatchingChannels()
+    {
+        ChannelDirectory directory = new ChannelDirectory();
+        for (int i = 0; i < 10; i++)
+        {
+            List<String> tags = i % 2 == 0 ? List.of("music", "rock") : List.of("music");
+            directory.add(new ChannelDirectory.ChannelInfo("band_" + i, "admin", tags));
+        }
+        directory.add(new ChannelDirectory.ChannelInfo("news", "admin", List.of("rock")));
+
+        List<String> found = new ArrayList<>();
+        String token = "";
+        int pages = 0;
+        do
+        {
+            ChannelDirectory.Page page = directory.search(List.of("music", "rock"), "band_", token, 2);
+            page.channels().forEach(channel -> found.add(channel.id()));
+            token = page.nextToken();
+            pages++;
+        }
+        while (!token.isEmpty());
+
+        assertEquals(List.of("band_0", "band_2", "band_4", "band_6", "band_8"), found);
+        assertEquals(3, pages);
+        assertTrue(directory.search(List.of("jazz"), "", "", 10).channels().isEmpty());
+        assertEquals(11, directory.search(List.of(), "", "", 100).channels().size());
+    }
+
+    @Test
+    void watchersMatchOnAnyTagOnceAndLeaveWhenClosed()
+    {
+        ChannelDirectory directory = new ChannelDirectory();
+        OutboundQueue rock = queue();
+        OutboundQueue both = queue();
+        OutboundQueue everything = queue();
+        directory.watch(rock, List.of("rock"), false);
+        directory.watch(both, List.of("rock", "jazz"), false);
+        directory.watch(everything, List.of(), true);
+
+        ChannelDirectory.ChannelInfo fusion = new ChannelDirectory.ChannelInfo("fusion", "admin", List.of("rock", "jazz"));
+        assertEquals(Set.of(rock, both, everything), directory.watchers(fusion));
+
+        // A new watch replaces the previous one
+        directory.watch(both, List.of("jazz"), false);
+        ChannelDirectory.ChannelInfo metal = new ChannelDirectory.ChannelInfo("metal", "admin", List.of("rock", "metal"));
+        assertEquals(Set.of(rock, everything), directory.watchers(metal));
+
+        rock.close();
+        assertEquals(Set.of(both, everything), directory.watchers(fusion));
+    }
+}
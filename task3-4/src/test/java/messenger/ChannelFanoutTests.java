@@ -0,0 +1,257 @@
+package messenger;
+
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ChannelFanoutTests
+{
+    private final ExecutorService pool = Executors.newFixedThreadPool(2);
+
+    @AfterEach
+    void shutdownPool()
+    {
+        pool.shutdownNow();
+    }
+
+    private static SerializedMessage message(int i)
+    {
+        return SerializedMessage.of(Messenger.MessageResponse.newBuilder()
+                .setFrom("admin")
+                .setContent("msg " + i)
+                .build());
+    }
+
+    @Test
+    void deliversInOrderToEverySubscriber() throws Exception
+    {
+        ChannelFanout fanout = new ChannelFanout(1024, OutboundQueue.OverflowPolicy.DROP_OLDEST, pool, 2);
+        int subscribers = 50;
+        int messages = 200;
+        CountDownLatch latch = new CountDownLatch(subscribers * messages);
+        List<List<String>> received = new CopyOnWriteArrayList<>();
+
+        for (int s = 0; s < subscribers; s++)
+        {
+            List<String> inbox = new CopyOnWriteArrayList<>();
+            received.add(inbox);
+            fanout.subscribe("ch", new RecordingObserver(inbox, latch, null), null);
+        }
+
+        for (int i = 0; i < messages; i++)
+        {
+            fanout.publish("ch", message(i));
+        }
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        for (List<String> inbox : received)
+        {
+            assertEquals(messages, inbox.size());
+            for (int i = 0; i < messages; i++)
+            {
+                assertEquals("msg " + i, inbox.get(i));
+            }
+        }
+        assertEquals(0, fanout.droppedCount());
+    }
+
+    @Test
+    void slowSubscriberDropsWithoutStallingOthers() throws Exception
+    {
+        ChannelFanout fanout = new ChannelFanout(4, OutboundQueue.OverflowPolicy.DROP_OLDEST, pool, 2);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch fastLatch = new CountDownLatch(100);
+
+        fanout.subscribe("ch", new RecordingObserver(new CopyOnWriteArrayList<>(), new CountDownLatch(0), release), null);
+        fanout.subscribe("ch", new RecordingObserver(new CopyOnWriteArrayList<>(), fastLatch, null), null);
+
+        for (int i = 0; i < 100; i++)
+        {
+            fanout.publish("ch", message(i));
+            // keep the fast subscriber's bounded queue from overflowing
+            Thread.sleep(1);
+        }
+
+        assertTrue(fastLatch.await(10, TimeUnit.SECONDS));
+        assertTrue(fanout.droppedCount("ch") > 0);
+        assertEquals(fanout.droppedCount("ch"), fanout.droppedCount());
+        release.countDown();
+    }
+
+    @Test
+    void cancelledSubscribersLeaveTheChannel() throws Exception
+    {
+        ChannelFanout fanout = new ChannelFanout(1024, OutboundQueue.OverflowPolicy.DROP_OLDEST, pool, 2);
+        List<String> cancelled = new CopyOnWriteArrayList<>();
+        List<String> kept = new CopyOnWriteArrayList<>();
+        CountDownLatch latch = new CountDownLatch(1);
+
+        OutboundQueue gone = fanout.subscribe("ch", new RecordingObserver(cancelled, new CountDownLatch(1), null), null);
+        fanout.subscribe("ch", new RecordingObserver(kept, latch, null), null);
+        assertEquals(2, fanout.subscriberCount("ch"));
+
+        fanout.unsubscribe("ch", gone);
+        assertEquals(1, fanout.subscriberCount("ch"));
+
+        fanout.publish("ch", message(0));
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(List.of("msg 0"), kept);
+        assertTrue(cancelled.isEmpty());
+    }
+
+    @Test
+    void queuesClosingDuringAddOrCompactNeverLeaveHoles() throws Exception
+    {
+        SubscriberRegistry registry = new SubscriberRegistry();
+        StreamObserver<SerializedMessage> sink = new RecordingObserver(new CopyOnWriteArrayList<>(), new CountDownLatch(0), null);
+        List<OutboundQueue> queues = new CopyOnWriteArrayList<>();
+        for (int round = 0; round < 2000; round++)
+        {
+            OutboundQueue queue = new OutboundQueue(sink, 16, Runnable::run, OutboundQueue.OverflowPolicy.DROP_OLDEST,
+                    null, msg -> { });
+            queues.add(queue);
+            pool.execute(() -> queues.get(queues.size() / 2).close());
+            registry.add("ch", queue, false);
+            if (round % 3 == 0) registry.compact("ch");
+
+            for (SubscriberRegistry.Subscriber subscriber : registry.snapshot("ch"))
+            {
+                assertTrue(subscriber != null, "null slot after round " + round);
+            }
+        }
+    }
+
+    @Test
+    void batchGoesOutAsOneEnvelopeOnlyToBatchAwareSubscribers() throws Exception
+    {
+        ChannelFanout fanout = new ChannelFanout(1024, OutboundQueue.OverflowPolicy.DROP_OLDEST, pool, 2);
+        List<String> plain = new CopyOnWriteArrayList<>();
+        List<String> batched = new CopyOnWriteArrayList<>();
+        CountDownLatch plainLatch = new CountDownLatch(3);
+        CountDownLatch batchLatch = new CountDownLatch(1);
+
+        fanout.subscribe("ch", new RecordingObserver(plain, plainLatch, null), null, false);
+        fanout.subscribe("ch", new StreamObserver<>()
+        {
+            @Override
+            public void onNext(SerializedMessage msg)
+            {
+                batched.add(msg.message().getBatchCount() + " in envelope");
+                batchLatch.countDown();
+            }
+
+            @Override
+            public void onError(Throwable t)
+            {
+            }
+
+            @Override
+            public void onCompleted()
+            {
+            }
+        }, null, true);
+
+        fanout.publishBatch("ch", List.of(message(0).message(), message(1).message(), message(2).message()));
+
+        assertTrue(plainLatch.await(5, TimeUnit.SECONDS));
+        assertTrue(batchLatch.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("msg 0", "msg 1", "msg 2"), plain);
+        assertEquals(List.of("3 in envelope"), batched);
+    }
+
+    @Test
+    void lateSubscriberReplaysHistoryBeforeLiveMessages(@TempDir Path dir) throws Exception
+    {
+        ChannelHistory history = new ChannelHistory(dir, 1024);
+        ChannelFanout fanout = new ChannelFanout(1024, OutboundQueue.OverflowPolicy.DROP_OLDEST, pool, 2, history);
+
+        for (int i = 0; i < 100; i++) fanout.publish("ch", message(i));
+
+        List<String> inbox = new CopyOnWriteArrayList<>();
+        CountDownLatch latch = new CountDownLatch(60);
+        fanout.subscribe("ch", new RecordingObserver(inbox, latch, null), null, false, 50);
+        for (int i = 100; i < 110; i++) fanout.publish("ch", message(i));
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 60; i++)
+        {
+            assertEquals("msg " + (50 + i), inbox.get(i));
+        }
+        history.close();
+    }
+
+    @Test
+    void spilledBacklogGoesOutBeforeLiveMessages() throws Exception
+    {
+        ChannelFanout fanout = new ChannelFanout(1024, OutboundQueue.OverflowPolicy.SPILL, pool, 2);
+
+        List<SerializedMessage> backlog = new ArrayList<>();
+        for (int i = 0; i < 50; i++) backlog.add(message(i));
+
+        List<String> inbox = new CopyOnWriteArrayList<>();
+        CountDownLatch latch = new CountDownLatch(100);
+        fanout.subscribe("ch", new RecordingObserver(inbox, latch, null), null, false, -1, backlog);
+        for (int i = 50; i < 100; i++) fanout.publish("ch", message(i));
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 100; i++)
+        {
+            assertEquals("msg " + i, inbox.get(i));
+        }
+    }
+
+    private static class RecordingObserver implements StreamObserver<SerializedMessage>
+    {
+        private final List<String> inbox;
+        private final CountDownLatch latch;
+        private final CountDownLatch block;
+
+        RecordingObserver(List<String> inbox, CountDownLatch latch, CountDownLatch block)
+        {
+            this.inbox = inbox;
+            this.latch = latch;
+            this.block = block;
+        }
+
+        @Override
+        public void onNext(SerializedMessage msg)
+        {
+            if (block != null)
+            {
+                try
+                {
+                    block.await();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            inbox.add(msg.message().getContent());
+            latch.countDown();
+        }
+
+        @Override
+        public void onError(Throwable t)
+        {
+        }
+
+        @Override
+        public void onCompleted()
+        {
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package messenger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ChannelLogTests
+{
+    private static byte[] record(int i)
+    {
+        return ("record " + i).repeat(1 + i % 7).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void readsFromAnyOffsetAcrossSegments(@TempDir Path dir) throws Exception
+    {
+        try (ChannelLog log = new ChannelLog(dir, 16 * 1024))
+        {
+            for (int i = 0; i < 5000; i++)
+            {
+                assertEquals(i, log.append(record(i)));
+            }
+
+            try (Stream<Path> files = Files.list(dir))
+            {
+                assertTrue(files.filter(f -> f.toString().endsWith(".log")).count() > 1);
+            }
+
+            for (long from : new long[] {0, 1, 777, 2500, 4999})
+            {
+                List<byte[]> records = log.read(from, 100);
+                assertEquals(Math.min(100, 5000 - from), records.size());
+                for (int i = 0; i < records.size(); i++)
+                {
+                    assertEquals(new String(record((int) from + i), StandardCharsets.UTF_8),
+                            new String(records.get(i), StandardCharsets.UTF_8));
+                }
+            }
+            assertTrue(log.read(5000, 100).isEmpty());
+        }
+    }
+
+    @Test
+    void reopenRecoversOffsetsAndDropsTornTail(@TempDir Path dir) throws Exception
+    {
+        try (ChannelLog log = new ChannelLog(dir, 1 << 20))
+        {
+            for (int i = 0; i < 1000; i++) log.append(record(i));
+        }
+
+        // A crash mid-append leaves a length header without its payload
+        try (FileChannel segment = FileChannel.open(dir.resolve(String.format("%020d.log", 0)), StandardOpenOption.APPEND))
+        {
+            segment.write(ByteBuffer.allocate(Integer.BYTES).putInt(100).flip());
+        }
+
+        try (ChannelLog log = new ChannelLog(dir, 1 << 20))
+        {
+            assertEquals(1000, log.nextOffset());
+            assertEquals(1000, log.append(record(1000)));
+            assertEquals("record 999".repeat(1 + 999 % 7),
+                    new String(log.read(999, 1).get(0), StandardCharsets.UTF_8));
+            assertEquals(2, log.read(999, 10).size());
+        }
+    }
+
+    @Test
+    void historyStampsOffsetsWithAnIdThatSurvivesRestart(@TempDir Path dir) throws Exception
+    {
+        String id;
+        try (ChannelHistory history = new ChannelHistory(dir, 1 << 20))
+        {
+            id = history.id();
+            history.append("ch", Messenger.MessageResponse.newBuilder().setContent("first").build());
+            Messenger.MessageResponse second =
+                    history.append("ch", Messenger.MessageResponse.newBuilder().setContent("second").build()).message();
+            assertEquals(1, second.getOffset());
+            assertEquals(id, second.getLog());
+        }
+
+        try (ChannelHistory history = new ChannelHistory(dir, 1 << 20))
+        {
+            assertEquals(id, history.id());
+            assertEquals(2, history.nextOffset("ch"));
+        }
+        try (ChannelHistory other = new ChannelHistory(dir.resolve("other"), 1 << 20))
+        {
+            assertNotEquals(id, other.id());
+        }
+    }
+
+    @Test
+    void retentionDropsTheOldestSegments(@TempDir Path dir) throws Exception
+    {
+        try (ChannelLog log = new ChannelLog(dir, 4 * 1024, 16 * 1024, 0))
+        {
+            for (int i = 0; i < 2000; i++) log.append(record(i));
+
+            assertTrue(log.retain(System.currentTimeMillis()) > 0);
+            long start = log.startOffset();
+            assertTrue(start > 0);
+            assertEquals(new String(record((int) start), StandardCharsets.UTF_8),
+                    new String(log.read(0, 1).get(0), StandardCharsets.UTF_8));
+            assertEquals(0, log.retain(System.currentTimeMillis()));
+            try (Stream<Path> files = Files.list(dir))
+            {
+                assertTrue(files.filter(f -> f.toString().endsWith(".log")).count() <= 5);
+            }
+        }
+    }
+
+    @Test
+    void historyKeepsNoLogForUnknownChannels(@TempDir Path dir) throws Exception
+    {
+        try (ChannelHistory history = new ChannelHistory(dir, 1 << 20, 0, 0, "known"::equals))
+        {
+            Messenger.MessageResponse msg = Messenger.MessageResponse.newBuilder().setContent("hi").build();
+            assertEquals(history.id(), history.append("known", msg).message().getLog());
+            assertEquals(msg, history.append("made-up", msg).message());
+
+            try (Stream<Path> files = Files.list(dir))
+            {
+                assertEquals(1, files.filter(f -> f.getFileName().toString().startsWith("ch-")).count());
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package messenger;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ChannelStatsTests
+{
+    @Test
+    void ratesCoverOnlyTheirWindow()
+    {
+        AtomicLong clock = new AtomicLong(1_000);
+        ChannelStats stats = new ChannelStats(clock::get);
+
+        // 10 msg/s of 100 bytes for two minutes, then 100 msg/s for the last second
+        for (int second = 0; second < 120; second++)
+        {
+            stats.recordMessages(10, 1_000);
+            clock.incrementAndGet();
+        }
+        stats.recordMessages(100, 10_000);
+        clock.incrementAndGet();
+
+        assertEquals(100, stats.rate(1).messagesPerSecond(), 1e-9);
+        assertEquals(10_000, stats.rate(1).bytesPerSecond(), 1e-9);
+        assertEquals((59 * 10 + 100) / 60.0, stats.rate(60).messagesPerSecond(), 1e-9);
+        assertEquals((120 * 10 + 100) / 300.0, stats.rate(300).messagesPerSecond(), 1e-9);
+        assertEquals(1_300, stats.totalMessages());
+
+        // Ten minutes of silence empties every window but not the totals
+        clock.addAndGet(600);
+        assertEquals(0, stats.rate(300).messagesPerSecond(), 1e-9);
+        assertEquals(1_300, stats.totalMessages());
+        assertEquals(130_000, stats.totalBytes());
+    }
+
+    @Test
+    void countsDoNotWrapAtIntRange()
+    {
+        ChannelStats stats = new ChannelStats(() -> 0);
+        for (int i = 0; i < 3; i++) stats.recordMessages(Integer.MAX_VALUE, 1);
+        assertEquals(3L * Integer.MAX_VALUE, stats.totalMessages());
+    }
+
+    @Test
+    void fanoutPercentilesStayWithinBucketError()
+    {
+        ChannelStats stats = new ChannelStats();
+        for (int micros = 1; micros <= 10_000; micros++)
+        {
+            stats.recordFanout(TimeUnit.MICROSECONDS.toNanos(micros));
+        }
+
+        assertEquals(10_000, stats.fanoutSamples());
+        assertEquals(10_000, stats.fanoutMaxMicros());
+        assertWithin(5_000, stats.fanoutPercentileMicros(50));
+        assertWithin(9_900, stats.fanoutPercentileMicros(99));
+    }
+
+    private static void assertWithin(long expected, long actual)
+    {
+        assertTrue(Math.abs(actual - expected) <= expected * 0.07, "expected ~" + expected + " but was " + actual);
+    }
+}
@@ -0,0 +1,62 @@
+package messenger;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class ClusterBusTests
+{
+    @Test
+    void usersOfDepartedNodesAreDroppedOnce() throws Exception
+    {
+        try (EmbeddedRedis redis = new EmbeddedRedis();
+             ClusterBus live = new ClusterBus("127.0.0.1", redis.port(), 2);
+             ClusterBus departed = new ClusterBus("127.0.0.1", redis.port(), 2))
+        {
+            live.register("alice");
+            departed.register("bob");
+            departed.register("carol");
+
+            assertEquals(Set.of("bob", "carol"), live.dropUsersOutside(Set.of(live.nodeId())));
+            // Another node seeing the same change finds nothing left to report
+            assertEquals(Set.of(), live.dropUsersOutside(Set.of(live.nodeId())));
+
+            assertEquals(live.nodeId(), live.locate("alice"));
+            assertNull(live.locate("bob"));
+        }
+    }
+
+    @Test
+    void subscriptionIsRestoredAfterTheConnectionDrops() throws Exception
+    {
+        try (EmbeddedRedis redis = new EmbeddedRedis();
+             ClusterBus receiver = new ClusterBus("127.0.0.1", redis.port(), 2);
+             ClusterBus sender = new ClusterBus("127.0.0.1", redis.port(), 2))
+        {
+            BlockingQueue<Messenger.BusMessage> received = new LinkedBlockingQueue<>();
+            receiver.start(received::add, members -> { });
+            sender.start(msg -> { }, members -> { });
+
+            redis.disconnectSubscribers();
+
+            // Whatever was published while it was away is gone; it has to hear the bus again
+            Messenger.BusMessage ping = Messenger.BusMessage.newBuilder().setTo("alice").build();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            Messenger.BusMessage got = null;
+            while (got == null && System.nanoTime() < deadline)
+            {
+                sender.sendTo(receiver.nodeId(), ping);
+                got = received.poll(100, TimeUnit.MILLISECONDS);
+            }
+            assertNotNull(got);
+            assertEquals("alice", got.getTo());
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package messenger;
+
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DeliveryWindowTests
+{
+    private static final class Recorder implements StreamObserver<SerializedMessage>
+    {
+        final List<Long> ids = new ArrayList<>();
+
+        @Override
+        public void onNext(SerializedMessage value)
+        {
+            ids.add(value.message().getMessageId());
+        }
+
+        @Override
+        public void onError(Throwable t)
+        {
+        }
+
+        @Override
+        public void onCompleted()
+        {
+        }
+    }
+
+    private static Messenger.MessageResponse message(String content)
+    {
+        return Messenger.MessageResponse.newBuilder().setFrom("alice").setContent(content).build();
+    }
+
+    @Test
+    void numbersMessagesAndAcksCumulatively()
+    {
+        Recorder stream = new Recorder();
+        OutboundQueue queue = new OutboundQueue(stream, 16, Runnable::run,
+                OutboundQueue.OverflowPolicy.DROP_OLDEST, null, msg -> { });
+        DeliveryWindow window = new DeliveryWindow(3);
+
+        assertTrue(window.deliver(message("a"), queue));
+        assertTrue(window.deliver(message("b"), queue));
+        assertTrue(window.deliver(message("c"), queue));
+        assertFalse(window.deliver(message("d"), queue), "a full window refuses");
+        assertEquals(List.of(1L, 2L, 3L), stream.ids);
+
+        assertEquals(2, window.ack(2));
+        assertTrue(window.deliver(message("d"), queue));
+
+        List<DeliveryWindow.Unacked> unacked = window.close();
+        assertEquals(List.of("c", "d"), unacked.stream().map(u -> u.message().getContent()).toList());
+        assertFalse(window.deliver(message("e"), queue), "a closed window refuses");
+    }
+
+    @Test
+    void replayIsNotHeldToTheLimitAndRefusedOffersAreNotTracked()
+    {
+        Recorder stream = new Recorder();
+        OutboundQueue queue = new OutboundQueue(stream, 16, Runnable::run,
+                OutboundQueue.OverflowPolicy.DROP_OLDEST, null, msg -> { });
+        DeliveryWindow window = new DeliveryWindow(1);
+
+        assertTrue(window.replay(message("a"), queue));
+        assertTrue(window.replay(message("b"), queue));
+        assertEquals(2, window.size());
+
+        queue.close();
+        assertFalse(window.replay(message("c"), queue));
+        assertEquals(2, window.size());
+    }
+}
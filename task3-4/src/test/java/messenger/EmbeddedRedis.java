@@ -0,0 +1,468 @@
+package messenger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+// Minimal in-process RESP server with just the commands RedisMessageStore and ClusterBus issue
+public class EmbeddedRedis implements AutoCloseable
+{
+    private static final Set<String> WRITES = Set.of("RPUSH", "LTRIM", "HSET", "HDEL", "DEL", "SETEX");
+
+    private final ServerSocket serverSocket;
+    private final Map<String, Object> data = new HashMap<>();
+    private final Map<String, Set<OutputStream>> subscribers = new HashMap<>();
+    // Bumped on every write to a key, so EXEC can tell whether a WATCHed key changed
+    private final Map<String, Long> versions = new HashMap<>();
+    private volatile boolean running = true;
+
+    public EmbeddedRedis() throws IOException
+    {
+        serverSocket = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+        Threads.daemon("embedded-redis-accept").newThread(this::acceptLoop).start();
+    }
+
+    public int port()
+    {
+        return serverSocket.getLocalPort();
+    }
+
+    public synchronized void flushAll()
+    {
+        data.clear();
+    }
+
+    // Cuts every subscribed connection, as a Redis restart or a network blip would
+    public void disconnectSubscribers() throws IOException
+    {
+        Set<OutputStream> connections = new HashSet<>();
+        synchronized (this)
+        {
+            for (Set<OutputStream> outs : subscribers.values()) connections.addAll(outs);
+            subscribers.clear();
+        }
+        for (OutputStream out : connections) out.close();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        running = false;
+        serverSocket.close();
+    }
+
+    private void acceptLoop()
+    {
+        while (running)
+        {
+            try
+            {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Threads.daemon("embedded-redis-conn").newThread(() -> serve(socket)).start();
+            }
+            catch (IOException e)
+            {
+                if (!running) return;
+            }
+        }
+    }
+
+    private void serve(Socket socket)
+    {
+        try (socket;
+             InputStream in = new BufferedInputStream(socket.getInputStream());
+             OutputStream out = new BufferedOutputStream(socket.getOutputStream()))
+        {
+            List<List<byte[]>> transaction = null;
+            Map<String, Long> watched = new HashMap<>();
+            Set<String> subscribed = new LinkedHashSet<>();
+            try
+            {
+                while (running)
+                {
+                    List<byte[]> command = readCommand(in);
+                    String name = new String(command.get(0), StandardCharsets.US_ASCII).toUpperCase(Locale.ROOT);
+                    Object reply;
+
+                    if (name.equals("WATCH"))
+                    {
+                        synchronized (this)
+                        {
+                            for (int i = 1; i < command.size(); i++)
+                            {
+                                String key = key(command.get(i));
+                                watched.putIfAbsent(key, versions.getOrDefault(key, 0L));
+                            }
+                        }
+                        reply = new Status("OK");
+                    }
+                    else if (name.equals("UNWATCH"))
+                    {
+                        watched.clear();
+                        reply = new Status("OK");
+                    }
+                    else if (name.equals("MULTI"))
+                    {
+                        transaction = new ArrayList<>();
+                        reply = new Status("OK");
+                    }
+                    else if (name.equals("EXEC") && transaction != null)
+                    {
+                        List<Object> replies = new ArrayList<>();
+                        synchronized (this)
+                        {
+                            boolean changed = false;
+                            for (Map.Entry<String, Long> entry : watched.entrySet())
+                            {
+                                changed |= !versions.getOrDefault(entry.getKey(), 0L).equals(entry.getValue());
+                            }
+                            if (changed) replies = null;
+                            else for (List<byte[]> queued : transaction) replies.add(execute(queued));
+                        }
+                        transaction = null;
+                        watched.clear();
+                        reply = replies;
+                    }
+                    else if (transaction != null)
+                    {
+                        transaction.add(command);
+                        reply = new Status("QUEUED");
+                    }
+                    else if (name.equals("SUBSCRIBE") || name.equals("UNSUBSCRIBE"))
+                    {
+                        reply = subscription(name, command, subscribed, out);
+                    }
+                    else if (name.equals("PUBLISH"))
+                    {
+                        reply = publish(command);
+                    }
+                    else
+                    {
+                        synchronized (this)
+                        {
+                            reply = execute(command);
+                        }
+                    }
+
+                    // Published messages are pushed to this socket from other connections' threads
+                    synchronized (out)
+                    {
+                        writeReply(out, reply);
+                        if (in.available() == 0) out.flush();
+                    }
+                }
+            }
+            finally
+            {
+                synchronized (this)
+                {
+                    for (String channel : subscribed) subscribers.getOrDefault(channel, new HashSet<>()).remove(out);
+                }
+            }
+        }
+        catch (IOException ignored)
+        {
+        }
+    }
+
+    private synchronized Object subscription(String name, List<byte[]> command, Set<String> subscribed,
+                                             OutputStream out)
+    {
+        List<String> channels = new ArrayList<>();
+        for (int i = 1; i < command.size(); i++) channels.add(key(command.get(i)));
+        if (channels.isEmpty() && name.equals("UNSUBSCRIBE")) channels.addAll(subscribed);
+
+        List<Object> replies = new ArrayList<>();
+        for (String channel : channels)
+        {
+            if (name.equals("SUBSCRIBE"))
+            {
+                subscribers.computeIfAbsent(channel, k -> new HashSet<>()).add(out);
+                subscribed.add(channel);
+            }
+            else
+            {
+                subscribers.getOrDefault(channel, new HashSet<>()).remove(out);
+                subscribed.remove(channel);
+            }
+            replies.add(List.of(name.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.US_ASCII),
+                    channel.getBytes(StandardCharsets.ISO_8859_1), (long) subscribed.size()));
+        }
+        return new Replies(replies);
+    }
+
+    private Object publish(List<byte[]> command)
+    {
+        List<OutputStream> targets;
+        synchronized (this)
+        {
+            targets = new ArrayList<>(subscribers.getOrDefault(key(command.get(1)), new HashSet<>()));
+        }
+
+        List<Object> message = List.of("message".getBytes(StandardCharsets.US_ASCII), command.get(1), command.get(2));
+        for (OutputStream target : targets)
+        {
+            synchronized (target)
+            {
+                try
+                {
+                    writeReply(target, message);
+                    target.flush();
+                }
+                catch (IOException ignored)
+                {
+                }
+            }
+        }
+        return (long) targets.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object execute(List<byte[]> command)
+    {
+        String name = new String(command.get(0), StandardCharsets.US_ASCII).toUpperCase(Locale.ROOT);
+        String key = command.size() > 1 ? key(command.get(1)) : null;
+        if (WRITES.contains(name))
+        {
+            int last = name.equals("DEL") ? command.size() : 2;
+            for (int i = 1; i < last; i++) versions.merge(key(command.get(i)), 1L, Long::sum);
+        }
+
+        switch (name)
+        {
+            case "PING":
+                return new Status("PONG");
+            case "RPUSH":
+            {
+                List<byte[]> list = (List<byte[]>) data.computeIfAbsent(key, k -> new ArrayList<byte[]>());
+                list.addAll(command.subList(2, command.size()));
+                return (long) list.size();
+            }
+            case "LRANGE":
+            {
+                List<byte[]> list = (List<byte[]>) data.getOrDefault(key, new ArrayList<byte[]>());
+                int[] range = range(list.size(), command.get(2), command.get(3));
+                return new ArrayList<Object>(list.subList(range[0], range[1]));
+            }
+            case "LTRIM":
+            {
+                List<byte[]> list = (List<byte[]>) data.get(key);
+                if (list != null)
+                {
+                    int[] range = range(list.size(), command.get(2), command.get(3));
+                    List<byte[]> kept = new ArrayList<>(list.subList(range[0], range[1]));
+                    if (kept.isEmpty()) data.remove(key);
+                    else data.put(key, kept);
+                }
+                return new Status("OK");
+            }
+            case "LLEN":
+            {
+                List<byte[]> list = (List<byte[]>) data.get(key);
+                return list == null ? 0L : (long) list.size();
+            }
+            case "HSET":
+            {
+                Map<String, byte[]> hash = (Map<String, byte[]>) data.computeIfAbsent(key, k -> new HashMap<String, byte[]>());
+                long added = 0;
+                for (int i = 2; i + 1 < command.size(); i += 2)
+                {
+                    if (hash.put(key(command.get(i)), command.get(i + 1)) == null) added++;
+                }
+                return added;
+            }
+            case "HGET":
+            {
+                Map<String, byte[]> hash = (Map<String, byte[]>) data.get(key);
+                return hash == null ? null : hash.get(key(command.get(2)));
+            }
+            case "HDEL":
+            {
+                Map<String, byte[]> hash = (Map<String, byte[]>) data.get(key);
+                long removed = 0;
+                for (int i = 2; hash != null && i < command.size(); i++)
+                {
+                    if (hash.remove(key(command.get(i))) != null) removed++;
+                }
+                return removed;
+            }
+            case "HGETALL":
+            {
+                Map<String, byte[]> hash = (Map<String, byte[]>) data.getOrDefault(key, new HashMap<String, byte[]>());
+                List<Object> entries = new ArrayList<>();
+                for (Map.Entry<String, byte[]> entry : hash.entrySet())
+                {
+                    entries.add(entry.getKey().getBytes(StandardCharsets.ISO_8859_1));
+                    entries.add(entry.getValue());
+                }
+                return entries;
+            }
+            case "HKEYS":
+            {
+                Map<String, byte[]> hash = (Map<String, byte[]>) data.getOrDefault(key, new HashMap<String, byte[]>());
+                List<Object> keys = new ArrayList<>();
+                for (String field : hash.keySet()) keys.add(field.getBytes(StandardCharsets.ISO_8859_1));
+                return keys;
+            }
+            case "DEL":
+            {
+                long removed = 0;
+                for (int i = 1; i < command.size(); i++)
+                {
+                    if (data.remove(key(command.get(i))) != null) removed++;
+                }
+                return removed;
+            }
+            case "SCAN":
+            {
+                // Single pass: the whole match comes back with the terminal cursor
+                String pattern = "*";
+                for (int i = 2; i + 1 < command.size(); i += 2)
+                {
+                    if (key(command.get(i)).equalsIgnoreCase("MATCH")) pattern = key(command.get(i + 1));
+                }
+                String prefix = pattern.endsWith("*") ? pattern.substring(0, pattern.length() - 1) : pattern;
+                List<Object> keys = new ArrayList<>();
+                for (String candidate : data.keySet())
+                {
+                    if (pattern.endsWith("*") ? candidate.startsWith(prefix) : candidate.equals(prefix))
+                    {
+                        keys.add(candidate.getBytes(StandardCharsets.ISO_8859_1));
+                    }
+                }
+                return List.of("0".getBytes(StandardCharsets.US_ASCII), keys);
+            }
+            case "SETEX":
+                // Keys never actually expire here
+                data.put(key, command.get(3));
+                return new Status("OK");
+            case "MGET":
+            {
+                List<Object> values = new ArrayList<>();
+                for (int i = 1; i < command.size(); i++)
+                {
+                    Object value = data.get(key(command.get(i)));
+                    values.add(value instanceof byte[] ? value : null);
+                }
+                return values;
+            }
+            case "EXPIRE":
+                return data.containsKey(key) ? 1L : 0L;
+            case "PTTL":
+                return data.containsKey(key) ? -1L : -2L;
+            default:
+                return new Error("ERR unknown command '" + name + "'");
+        }
+    }
+
+    private static int[] range(int size, byte[] startArg, byte[] stopArg)
+    {
+        long start = Long.parseLong(new String(startArg, StandardCharsets.US_ASCII));
+        long stop = Long.parseLong(new String(stopArg, StandardCharsets.US_ASCII));
+        if (start < 0) start = Math.max(0, size + start);
+        if (stop < 0) stop = size + stop;
+        stop = Math.min(stop, size - 1);
+        if (start > stop) return new int[]{0, 0};
+        return new int[]{(int) start, (int) stop + 1};
+    }
+
+    private static String key(byte[] raw)
+    {
+        return new String(raw, StandardCharsets.ISO_8859_1);
+    }
+
+    private static List<byte[]> readCommand(InputStream in) throws IOException
+    {
+        String header = readLine(in);
+        if (header.charAt(0) != '*') throw new IOException("Inline commands are not supported");
+        int count = Integer.parseInt(header.substring(1));
+        List<byte[]> args = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+        {
+            int length = Integer.parseInt(readLine(in).substring(1));
+            byte[] arg = in.readNBytes(length);
+            if (arg.length < length) throw new EOFException();
+            in.skipNBytes(2);
+            args.add(arg);
+        }
+        return args;
+    }
+
+    private static String readLine(InputStream in) throws IOException
+    {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\r')
+        {
+            if (c == -1) throw new EOFException();
+            line.append((char) c);
+        }
+        in.read();
+        return line.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeReply(OutputStream out, Object reply) throws IOException
+    {
+        if (reply instanceof Status status)
+        {
+            out.write(("+" + status.text + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        else if (reply instanceof Error error)
+        {
+            out.write(("-" + error.text + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        else if (reply instanceof Long number)
+        {
+            out.write((":" + number + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        else if (reply instanceof byte[] bulk)
+        {
+            out.write(("$" + bulk.length + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(bulk);
+            out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        else if (reply instanceof Replies replies)
+        {
+            for (Object item : replies.items) writeReply(out, item);
+        }
+        else if (reply instanceof List<?> list)
+        {
+            out.write(("*" + list.size() + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            for (Object item : (List<Object>) list) writeReply(out, item);
+        }
+        else
+        {
+            out.write("$-1\r\n".getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    private record Status(String text)
+    {
+    }
+
+    private record Error(String text)
+    {
+    }
+
+    // Several top-level replies to one command, as SUBSCRIBE sends one per channel
+    private record Replies(List<Object> items)
+    {
+    }
+}
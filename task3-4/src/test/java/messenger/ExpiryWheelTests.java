@@ -0,0 +1,105 @@
+package messenger;
+
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ExpiryWheelTests
+{
+    // 4 slots of 5 ms: anything past 20 ms lives on an upper level and has to cascade down
+    private final ExpiryWheel wheel = new ExpiryWheel(5, TimeUnit.MILLISECONDS, 4);
+
+    @AfterEach
+    void closeWheel()
+    {
+        wheel.close();
+    }
+
+    private static Messenger.MessageResponse signal(String content)
+    {
+        return Messenger.MessageResponse.newBuilder().setContent(content).setDelete(true).build();
+    }
+
+    private static OutboundQueue target(List<String> received)
+    {
+        return new OutboundQueue(new StreamObserver<>()
+        {
+            @Override
+            public void onNext(SerializedMessage msg)
+            {
+                received.add(msg.message().getContent());
+            }
+
+            @Override
+            public void onError(Throwable t)
+            {
+            }
+
+            @Override
+            public void onCompleted()
+            {
+            }
+        }, 64, Runnable::run, OutboundQueue.OverflowPolicy.DROP_OLDEST, null, msg -> { });
+    }
+
+    private static void awaitCount(List<String> received, int count) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (received.size() < count && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    void firesInDeadlineOrderAcrossLevels() throws Exception
+    {
+        List<String> received = new CopyOnWriteArrayList<>();
+        OutboundQueue queue = target(received);
+
+        long start = System.nanoTime();
+        wheel.schedule(queue, signal("c"), 400, TimeUnit.MILLISECONDS);
+        wheel.schedule(queue, signal("a"), 10, TimeUnit.MILLISECONDS);
+        wheel.schedule(queue, signal("b"), 90, TimeUnit.MILLISECONDS);
+
+        awaitCount(received, 3);
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(List.of("a", "b", "c"), received);
+        assertTrue(elapsedMs >= 400, "fired too early: " + elapsedMs + " ms");
+        assertEquals(0, wheel.pendingCount());
+    }
+
+    @Test
+    void cancelAllDropsEveryTimeoutOfTarget() throws Exception
+    {
+        List<String> gone = new CopyOnWriteArrayList<>();
+        List<String> kept = new CopyOnWriteArrayList<>();
+        OutboundQueue goneQueue = target(gone);
+        OutboundQueue keptQueue = target(kept);
+
+        for (int i = 0; i < 10; i++)
+        {
+            wheel.schedule(goneQueue, signal("x" + i), 50 + i * 10, TimeUnit.MILLISECONDS);
+        }
+        wheel.schedule(keptQueue, signal("y"), 200, TimeUnit.MILLISECONDS);
+        ExpiryWheel.Timeout single = wheel.schedule(keptQueue, signal("z"), 100, TimeUnit.MILLISECONDS);
+
+        wheel.cancelAll(goneQueue);
+        single.cancel();
+
+        awaitCount(kept, 1);
+        Thread.sleep(50);
+
+        assertTrue(gone.isEmpty());
+        assertEquals(List.of("y"), kept);
+        assertEquals(0, wheel.pendingCount());
+    }
+}
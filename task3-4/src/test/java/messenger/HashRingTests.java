@@ -0,0 +1,44 @@
+package messenger;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HashRingTests
+{
+    @Test
+    void spreadsChannelsAndMovesOnlyTheLeavingNodesShare()
+    {
+        HashRing ring = new HashRing();
+        assertNull(ring.owner("channel"));
+
+        ring.update(List.of("a", "b", "c", "d"));
+        Map<String, String> before = new HashMap<>();
+        Map<String, Integer> load = new HashMap<>();
+        for (int i = 0; i < 10_000; i++)
+        {
+            String owner = ring.owner("channel_" + i);
+            before.put("channel_" + i, owner);
+            load.merge(owner, 1, Integer::sum);
+        }
+        for (int owned : load.values())
+        {
+            assertTrue(owned > 1_500 && owned < 3_500, "uneven split: " + load);
+        }
+
+        ring.update(List.of("a", "b", "c"));
+        for (Map.Entry<String, String> entry : before.entrySet())
+        {
+            if (!entry.getValue().equals("d"))
+            {
+                assertEquals(entry.getValue(), ring.owner(entry.getKey()));
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package messenger;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class InMemoryMessageStoreTests
+{
+    @Test
+    void inboxDrainsInOrderWithoutExpiredSecrets()
+    {
+        try (InMemoryMessageStore store = new InMemoryMessageStore())
+        {
+            store.storeMessage("alice", "bob", "first", false, 10);
+            store.storeMessage("alice", "bob", "gone", true, 0);
+            store.storeMessage("carol", "bob", "kept secret", true, 60);
+            store.storeMessage("alice", "dave", "other inbox", false, 10);
+
+            assertEquals(List.of(
+                    new MessageStore.StoredMessage("alice", "first", false),
+                    new MessageStore.StoredMessage("carol", "kept secret", true)), store.drainMessages("bob"));
+            assertTrue(store.drainMessages("bob").isEmpty());
+            assertEquals(1, store.drainMessages("dave").size());
+        }
+    }
+
+    @Test
+    void spillsAndChannelsRoundTrip()
+    {
+        try (InMemoryMessageStore store = new InMemoryMessageStore())
+        {
+            store.spill("spill:ch:bob", new byte[]{1});
+            store.spill("spill:ch:bob", new byte[]{2});
+            List<byte[]> spilled = store.takeSpilled("spill:ch:bob");
+            assertEquals(2, spilled.size());
+            assertArrayEquals(new byte[]{2}, spilled.get(1));
+            assertTrue(store.takeSpilled("spill:ch:bob").isEmpty());
+
+            store.saveChannel("news", "alice", List.of("daily"));
+            assertEquals(List.of(new ChannelDirectory.ChannelInfo("news", "alice", List.of("daily"))), store.loadChannels());
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package messenger;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class InboxCodecTests
+{
+    @Test
+    void entriesRoundTripAndLargeOnesAreCompressed()
+    {
+        byte[] small = InboxCodec.encode(0, "alice", "привет", false, 256);
+        assertEquals(new MessageStore.StoredMessage("alice", "привет", false), InboxCodec.decode(small, 0));
+
+        String content = "the same line again and again. ".repeat(100);
+        byte[] large = InboxCodec.encode(0, "alice", content, false, 256);
+        byte[] uncompressed = InboxCodec.encode(0, "alice", content, false, -1);
+        assertTrue(large.length * 5 < uncompressed.length, large.length + " vs " + uncompressed.length);
+        assertEquals(content, InboxCodec.decode(large, 0).content());
+        assertEquals(content, InboxCodec.decode(uncompressed, 0).content());
+    }
+
+    @Test
+    void expiredSecretsAndOldStringEntries()
+    {
+        byte[] secret = InboxCodec.encode(1_000, "bob", "psst", true, 256);
+        assertEquals(new MessageStore.StoredMessage("bob", "psst", true), InboxCodec.decode(secret, 999));
+        assertNull(InboxCodec.decode(secret, 1_000));
+
+        byte[] legacy = "0|1|3|bobhi|there".getBytes(StandardCharsets.UTF_8);
+        assertEquals(new MessageStore.StoredMessage("bob", "hi|there", true), InboxCodec.decode(legacy, 0));
+    }
+}
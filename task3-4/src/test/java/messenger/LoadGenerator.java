@@ -0,0 +1,435 @@
+package messenger;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Server;
+import io.grpc.stub.StreamObserver;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+// Open-loop load generator: sends at a fixed schedule and measures send-to-onNext latency
+// from the *intended* send time, so a stalled server shows up in the percentiles instead of
+// silently lowering the offered rate.
+public class LoadGenerator
+{
+    private static final String PROBE = "probe";
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(1);
+    private static final int BASE_PORT = 9090;
+
+    private static EmbeddedRedis embeddedRedis;
+
+    public static class Config
+    {
+        int clients = Integer.getInteger("load.clients", 150);
+        int channels = Integer.getInteger("load.channels", 10);
+        int ratePerSecond = Integer.getInteger("load.rate", 500);
+        int durationSeconds = Integer.getInteger("load.durationSeconds", 3);
+        double directRatio = Double.parseDouble(System.getProperty("load.directRatio", "0.1"));
+        // > 1: channel messages are published through the client-streaming SendChannelMessages in batches of this size
+        int channelBatch = Integer.getInteger("load.channelBatch", 1);
+        int drainTimeoutSeconds = Integer.getInteger("load.drainTimeoutSeconds", 30);
+        // > 1: that many clustered servers on consecutive ports, clients spread across them
+        int nodes = Integer.getInteger("load.nodes", 1);
+        ClusterMode cluster = ClusterMode.valueOf(System.getProperty("load.cluster", "SHARDED"));
+        // MEMORY leaves Redis out of the measured path (the cluster bus still needs it)
+        StoreBackend store = StoreBackend.valueOf(System.getProperty("load.store", "REDIS"));
+    }
+
+    public static class Report
+    {
+        final int workers;
+        final ExecutorMode mode;
+        final int nodes;
+        final ClusterMode cluster;
+        final StoreBackend store;
+        final long sent;
+        final long expected;
+        final long delivered;
+        final double seconds;
+        final Histogram channelLatency;
+        final Histogram directLatency;
+
+        Report(int workers, ExecutorMode mode, int nodes, ClusterMode cluster, StoreBackend store, long sent, long expected, long delivered, double seconds,
+               Histogram channelLatency, Histogram directLatency)
+        {
+            this.workers = workers;
+            this.mode = mode;
+            this.nodes = nodes;
+            this.cluster = cluster;
+            this.store = store;
+            this.sent = sent;
+            this.expected = expected;
+            this.delivered = delivered;
+            this.seconds = seconds;
+            this.channelLatency = channelLatency;
+            this.directLatency = directLatency;
+        }
+
+        void print()
+        {
+            System.out.printf("%s, %d worker(s), %s store%s: sent=%d delivered=%d/%d throughput=%.0f deliveries/s%n",
+                    mode, workers, store, nodes > 1 ? " x " + nodes + " " + cluster + " nodes" : "", sent, delivered, expected,
+                    delivered / seconds);
+            printLatency("  channel", channelLatency);
+            printLatency("  direct ", directLatency);
+        }
+
+        private static void printLatency(String label, Histogram histogram)
+        {
+            if (histogram.getTotalCount() == 0) return;
+            System.out.printf("%s p50=%.2f ms p99=%.2f ms p999=%.2f ms max=%.2f ms (n=%d)%n", label,
+                    histogram.getValueAtPercentile(50) / 1000.0,
+                    histogram.getValueAtPercentile(99) / 1000.0,
+                    histogram.getValueAtPercentile(99.9) / 1000.0,
+                    histogram.getMaxValue() / 1000.0,
+                    histogram.getTotalCount());
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Config config = new Config();
+        ExecutorMode mode = ExecutorMode.valueOf(System.getProperty("load.executor", "FIXED"));
+        for (String workers : System.getProperty("load.workers", "1,2,4,8").split(","))
+        {
+            run(Integer.parseInt(workers.trim()), mode, config).print();
+        }
+    }
+
+    public static synchronized Report run(int workers, ExecutorMode mode, Config config) throws Exception
+    {
+        startEmbeddedRedisIfNeeded();
+        List<Server> servers = new ArrayList<>();
+        try
+        {
+            for (int node = 0; node < config.nodes; node++)
+            {
+                servers.add(Main.startServer(BASE_PORT + node, workers, mode,
+                        config.nodes > 1 ? config.cluster : ClusterMode.NONE, config.store));
+            }
+            return new Run(workers, mode, config).execute();
+        }
+        finally
+        {
+            for (Server server : servers) server.shutdownNow();
+            for (Server server : servers) server.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    // Main reads the Redis address once, so the stand-in must be up before the server class loads
+    private static void startEmbeddedRedisIfNeeded() throws Exception
+    {
+        if (embeddedRedis != null || !Boolean.parseBoolean(System.getProperty("load.embeddedRedis", "true"))) return;
+        embeddedRedis = new EmbeddedRedis();
+        System.setProperty("messenger.redis.host", "127.0.0.1");
+        System.setProperty("messenger.redis.port", Integer.toString(embeddedRedis.port()));
+    }
+
+    private static class Run
+    {
+        private final int workers;
+        private final ExecutorMode mode;
+        private final Config config;
+        private final List<LoadClient> clients = new ArrayList<>();
+        private final Histogram channelLatency = new ConcurrentHistogram(HIGHEST_TRACKABLE_MICROS, 3);
+        private final Histogram directLatency = new ConcurrentHistogram(HIGHEST_TRACKABLE_MICROS, 3);
+        private final AtomicLong delivered = new AtomicLong();
+        private volatile long lastDeliveryNanos;
+
+        Run(int workers, ExecutorMode mode, Config config)
+        {
+            this.workers = workers;
+            this.mode = mode;
+            this.config = config;
+        }
+
+        Report execute() throws InterruptedException
+        {
+            try
+            {
+                for (int i = 0; i < config.clients; i++)
+                {
+                    clients.add(new LoadClient(this, "user_" + i, BASE_PORT + i % config.nodes));
+                }
+                for (int c = 0; c < config.channels; c++)
+                {
+                    clients.get(c % clients.size()).createChannel(channelId(c));
+                }
+                for (LoadClient client : clients)
+                {
+                    client.subscribe(config.channels);
+                }
+                awaitSubscriptions();
+
+                return generate();
+            }
+            finally
+            {
+                for (LoadClient client : clients) client.close();
+            }
+        }
+
+        private void awaitSubscriptions() throws InterruptedException
+        {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (!allSubscribed())
+            {
+                if (System.nanoTime() > deadline) throw new IllegalStateException("Subscriptions did not register");
+                for (int c = 0; c < config.channels; c++)
+                {
+                    owner(c).sendChannel(channelId(c), PROBE);
+                }
+                for (LoadClient client : clients)
+                {
+                    if (!client.directSeen) clients.get(0).sendDirect(client.username, PROBE);
+                }
+                Thread.sleep(50);
+            }
+            Thread.sleep(200);
+            delivered.set(0);
+        }
+
+        private boolean allSubscribed()
+        {
+            for (LoadClient client : clients)
+            {
+                if (!client.directSeen || client.seenChannels.size() < config.channels) return false;
+            }
+            return true;
+        }
+
+        private Report generate() throws InterruptedException
+        {
+            long intervalNanos = TimeUnit.SECONDS.toNanos(1) / config.ratePerSecond;
+            long total = (long) config.ratePerSecond * config.durationSeconds;
+            long expected = 0;
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+
+            long start = System.nanoTime();
+            for (long i = 0; i < total; i++)
+            {
+                long intended = start + i * intervalNanos;
+                long wait = intended - System.nanoTime();
+                if (wait > 0) LockSupport.parkNanos(wait);
+
+                String content = intended + ":" + i;
+                if (random.nextDouble() < config.directRatio)
+                {
+                    LoadClient from = clients.get(random.nextInt(clients.size()));
+                    LoadClient to = clients.get(random.nextInt(clients.size()));
+                    from.sendDirect(to.username, content);
+                    expected++;
+                }
+                else
+                {
+                    int channel = random.nextInt(config.channels);
+                    owner(channel).publish(channelId(channel), content, config.channelBatch);
+                    expected += clients.size();
+                }
+            }
+            for (LoadClient client : clients) client.flushBatches();
+
+            long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.drainTimeoutSeconds);
+            while (delivered.get() < expected && System.nanoTime() < drainDeadline)
+            {
+                Thread.sleep(10);
+            }
+
+            long end = delivered.get() >= expected ? lastDeliveryNanos : System.nanoTime();
+            double seconds = (end - start) / 1e9;
+            return new Report(workers, mode, config.nodes, config.cluster, config.store, total, expected, delivered.get(), seconds, channelLatency, directLatency);
+        }
+
+        private LoadClient owner(int channel)
+        {
+            return clients.get(channel % clients.size());
+        }
+
+        private static String channelId(int channel)
+        {
+            return "CHANNEL:channel_" + channel;
+        }
+
+        void record(Histogram histogram, String content)
+        {
+            if (content.equals(PROBE)) return;
+            long now = System.nanoTime();
+            long intended = Long.parseLong(content.substring(0, content.indexOf(':')));
+            histogram.recordValue(Math.min(HIGHEST_TRACKABLE_MICROS, (now - intended) / 1000));
+            lastDeliveryNanos = now;
+            delivered.incrementAndGet();
+        }
+    }
+
+    private static class LoadClient
+    {
+        private final Run run;
+        private final String username;
+        private final ManagedChannel channel;
+        private final MessengerServiceGrpc.MessengerServiceStub asyncStub;
+        private final MessengerServiceGrpc.MessengerServiceBlockingStub blockingStub;
+        private final Set<String> seenChannels = ConcurrentHashMap.newKeySet();
+        private final Map<String, List<Messenger.ChannelMessageRequest>> pendingBatches = new HashMap<>();
+        private volatile boolean directSeen;
+
+        LoadClient(Run run, String username, int port)
+        {
+            this.run = run;
+            this.username = username;
+            this.channel = ManagedChannelBuilder.forAddress("localhost", port).usePlaintext().build();
+            this.asyncStub = MessengerServiceGrpc.newStub(channel);
+            this.blockingStub = MessengerServiceGrpc.newBlockingStub(channel);
+
+            blockingStub.connect(Messenger.ConnectRequest.newBuilder().setUsername(username).build());
+            asyncStub.receiveMessages(Messenger.ReceiveRequest.newBuilder().setUsername(username).build(),
+                    observer(msg ->
+                    {
+                        if (msg.getSystem() || msg.getDelete()) return;
+                        directSeen = true;
+                        run.record(run.directLatency, msg.getContent());
+                    }));
+        }
+
+        void createChannel(String channelId)
+        {
+            blockingStub.createChannel(Messenger.CreateChannelRequest.newBuilder()
+                    .setCreator(username)
+                    .setName(channelId)
+                    .build());
+        }
+
+        void subscribe(int channels)
+        {
+            for (int c = 0; c < channels; c++)
+            {
+                String channelId = Run.channelId(c);
+                asyncStub.receiveChannelMessages(Messenger.ChannelReceiveRequest.newBuilder()
+                        .setUsername(username)
+                        .setChannelId(channelId)
+                        .setAcceptBatches(true)
+                        .build(), observer(msg ->
+                {
+                    seenChannels.add(channelId);
+                    if (msg.getBatchCount() == 0)
+                    {
+                        run.record(run.channelLatency, msg.getContent());
+                        return;
+                    }
+                    for (Messenger.MessageResponse inner : msg.getBatchList())
+                    {
+                        run.record(run.channelLatency, inner.getContent());
+                    }
+                }));
+            }
+        }
+
+        void sendChannel(String channelId, String content)
+        {
+            asyncStub.sendChannelMessage(Messenger.ChannelMessageRequest.newBuilder()
+                    .setFrom(username)
+                    .setChannelId(channelId)
+                    .setContent(content)
+                    .build(), ignoringObserver());
+        }
+
+        void publish(String channelId, String content, int batchSize)
+        {
+            if (batchSize <= 1)
+            {
+                sendChannel(channelId, content);
+                return;
+            }
+
+            List<Messenger.ChannelMessageRequest> batch = pendingBatches.computeIfAbsent(channelId, k -> new ArrayList<>());
+            batch.add(Messenger.ChannelMessageRequest.newBuilder()
+                    .setFrom(username)
+                    .setChannelId(channelId)
+                    .setContent(content)
+                    .build());
+            if (batch.size() >= batchSize) sendBatch(pendingBatches.remove(channelId));
+        }
+
+        void flushBatches()
+        {
+            for (List<Messenger.ChannelMessageRequest> batch : pendingBatches.values()) sendBatch(batch);
+            pendingBatches.clear();
+        }
+
+        private void sendBatch(List<Messenger.ChannelMessageRequest> batch)
+        {
+            StreamObserver<Messenger.ChannelMessageRequest> stream = asyncStub.sendChannelMessages(ignoringObserver());
+            for (Messenger.ChannelMessageRequest request : batch) stream.onNext(request);
+            stream.onCompleted();
+        }
+
+        void sendDirect(String to, String content)
+        {
+            asyncStub.sendMessage(Messenger.MessageRequest.newBuilder()
+                    .setFrom(username)
+                    .setTo(to)
+                    .setContent(content)
+                    .build(), ignoringObserver());
+        }
+
+        void close()
+        {
+            channel.shutdownNow();
+        }
+
+        private static StreamObserver<Messenger.MessageResponse> observer(
+                Consumer<Messenger.MessageResponse> onMessage)
+        {
+            return new StreamObserver<>()
+            {
+                @Override
+                public void onNext(Messenger.MessageResponse msg)
+                {
+                    onMessage.accept(msg);
+                }
+
+                @Override
+                public void onError(Throwable t)
+                {
+                }
+
+                @Override
+                public void onCompleted()
+                {
+                }
+            };
+        }
+
+        private static <T> StreamObserver<T> ignoringObserver()
+        {
+            return new StreamObserver<>()
+            {
+                @Override
+                public void onNext(T value)
+                {
+                }
+
+                @Override
+                public void onError(Throwable t)
+                {
+                }
+
+                @Override
+                public void onCompleted()
+                {
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package messenger;
+
+import com.sun.net.httpserver.HttpServer;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.ServerInterceptors;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MetricsTests
+{
+    @Test
+    void callsAndServerGaugesAreScrapedOverHttp() throws Exception
+    {
+        try (EmbeddedRedis redis = new EmbeddedRedis();
+             RedisMessageStore store = new RedisMessageStore("127.0.0.1", redis.port(), 4))
+        {
+            Main.MessengerServiceImpl service = new Main.MessengerServiceImpl(store);
+            MetricsInterceptor calls = new MetricsInterceptor();
+            Metrics metrics = new Metrics();
+            metrics.register(calls);
+            service.registerMetrics(metrics);
+
+            String name = InProcessServerBuilder.generateName();
+            Server server = InProcessServerBuilder.forName(name)
+                    .addService(ServerInterceptors.intercept(service, calls))
+                    .build()
+                    .start();
+            ManagedChannel channel = InProcessChannelBuilder.forName(name).build();
+            HttpServer http = metrics.serve(0);
+            try
+            {
+                MessengerServiceGrpc.MessengerServiceBlockingStub stub = MessengerServiceGrpc.newBlockingStub(channel);
+                stub.connect(Messenger.ConnectRequest.newBuilder().setUsername("metrics_user").build());
+                stub.getChannelStats(Messenger.ChannelStatsRequest.newBuilder().setChannelId("none").build());
+                stub.getChannelStats(Messenger.ChannelStatsRequest.newBuilder().setChannelId("none").build());
+
+                HttpResponse<String> response = HttpClient.newHttpClient().send(
+                        HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + http.getAddress().getPort() + "/metrics"))
+                                .build(),
+                        HttpResponse.BodyHandlers.ofString());
+                String body = response.body();
+
+                assertEquals(200, response.statusCode());
+                assertTrue(body.contains("messenger_grpc_calls_started_total{method=\"GetChannelStats\"} 2"), body);
+                assertTrue(body.contains("messenger_grpc_calls_in_flight{method=\"Connect\"} 0"), body);
+                assertTrue(body.contains("messenger_grpc_call_duration_seconds_count{method=\"Connect\"} 1"), body);
+                assertTrue(body.contains("messenger_sessions 1"), body);
+                assertTrue(body.contains("# TYPE messenger_redis_pool_active gauge"), body);
+            }
+            finally
+            {
+                http.stop(0);
+                channel.shutdownNow();
+                server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+            }
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package messenger;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OutboundQueueTests
+{
+    private static Messenger.MessageResponse message(int i)
+    {
+        return Messenger.MessageResponse.newBuilder().setContent("msg " + i).build();
+    }
+
+    @Test
+    void holdsMessagesUntilStreamIsReady()
+    {
+        FakeServerStream stream = new FakeServerStream();
+        stream.ready = false;
+        OutboundQueue queue = new OutboundQueue(stream, 16, Runnable::run,
+                OutboundQueue.OverflowPolicy.DROP_OLDEST, null, msg -> { });
+
+        queue.offer(message(0));
+        queue.offer(message(1));
+        assertTrue(stream.received.isEmpty());
+        assertEquals(2, queue.depth());
+
+        stream.becomeReady();
+        assertEquals(List.of("msg 0", "msg 1"), stream.received);
+        assertEquals(0, queue.depth());
+    }
+
+    @Test
+    void dropOldestKeepsNewestMessages()
+    {
+        FakeServerStream stream = new FakeServerStream();
+        stream.ready = false;
+        OutboundQueue queue = new OutboundQueue(stream, 2, Runnable::run,
+                OutboundQueue.OverflowPolicy.DROP_OLDEST, null, msg -> { });
+
+        for (int i = 0; i < 5; i++) queue.offer(message(i));
+
+        stream.becomeReady();
+        assertEquals(List.of("msg 3", "msg 4"), stream.received);
+        assertEquals(3, queue.dropped());
+    }
+
+    @Test
+    void droppedNumberedMessagesLeaveTheWindowThroughTheDropCallback()
+    {
+        FakeServerStream stream = new FakeServerStream();
+        stream.ready = false;
+        DeliveryWindow window = new DeliveryWindow(16);
+        List<String> persisted = new ArrayList<>();
+        OutboundQueue queue = new OutboundQueue(stream, 2, Runnable::run,
+                OutboundQueue.OverflowPolicy.DROP_OLDEST, null, msg ->
+                {
+                    if (window.forget(msg.message().getMessageId())) persisted.add(msg.message().getContent());
+                });
+
+        for (int i = 0; i < 4; i++) assertTrue(window.deliver(message(i), queue));
+        stream.becomeReady();
+
+        assertEquals(List.of("msg 0", "msg 1"), persisted);
+        assertEquals(2, window.ack(4));
+        assertEquals(0, window.size());
+    }
+
+    @Test
+    void disconnectPolicyFailsTheStream()
+    {
+        FakeServerStream stream = new FakeServerStream();
+        stream.ready = false;
+        OutboundQueue queue = new OutboundQueue(stream, 1, Runnable::run,
+                OutboundQueue.OverflowPolicy.DISCONNECT, null, msg -> { });
+
+        assertTrue(queue.offer(message(0)));
+        assertFalse(queue.offer(message(1)));
+
+        assertTrue(queue.isClosed());
+        assertNotNull(stream.error);
+        assertEquals(Status.Code.RESOURCE_EXHAUSTED, Status.fromThrowable(stream.error).getCode());
+    }
+
+    @Test
+    void spillPolicyHandsOverflowToSink()
+    {
+        FakeServerStream stream = new FakeServerStream();
+        stream.ready = false;
+        List<String> spilled = new ArrayList<>();
+        OutboundQueue queue = new OutboundQueue(stream, 1, Runnable::run,
+                OutboundQueue.OverflowPolicy.SPILL, msg -> spilled.add(msg.message().getContent()), msg -> { });
+
+        for (int i = 0; i < 3; i++) queue.offer(message(i));
+
+        assertEquals(List.of("msg 1", "msg 2"), spilled);
+        assertEquals(2, queue.spilled());
+        assertEquals(0, queue.dropped());
+    }
+
+    @Test
+    void concurrentProducersNeverOverlapOnTheStream() throws Exception
+    {
+        int producers = 8;
+        int perProducer = 2000;
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        AtomicInteger inside = new AtomicInteger();
+        AtomicBoolean overlapped = new AtomicBoolean();
+        List<String> received = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(producers * perProducer);
+
+        StreamObserver<SerializedMessage> stream = new StreamObserver<>()
+        {
+            @Override
+            public void onNext(SerializedMessage msg)
+            {
+                if (inside.incrementAndGet() != 1) overlapped.set(true);
+                received.add(msg.message().getContent());
+                inside.decrementAndGet();
+                done.countDown();
+            }
+
+            @Override
+            public void onError(Throwable t)
+            {
+            }
+
+            @Override
+            public void onCompleted()
+            {
+            }
+        };
+        OutboundQueue queue = new OutboundQueue(stream, producers * perProducer, pool,
+                OutboundQueue.OverflowPolicy.DROP_OLDEST, null, msg -> { });
+
+        try
+        {
+            List<Thread> threads = new ArrayList<>();
+            for (int p = 0; p < producers; p++)
+            {
+                int producer = p;
+                Thread thread = new Thread(() ->
+                {
+                    for (int i = 0; i < perProducer; i++)
+                    {
+                        queue.offer(Messenger.MessageResponse.newBuilder().setContent(producer + ":" + i).build());
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) thread.join();
+
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertFalse(overlapped.get());
+            assertEquals(0, queue.depth());
+
+            // Each producer's messages come out in the order it offered them
+            int[] next = new int[producers];
+            for (String content : received)
+            {
+                String[] parts = content.split(":");
+                int producer = Integer.parseInt(parts[0]);
+                assertEquals(next[producer]++, Integer.parseInt(parts[1]));
+            }
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void broadcastIsSerializedOnceAndSharedAcrossStreams() throws Exception
+    {
+        SerializedMessage broadcast = SerializedMessage.of(message(7));
+        byte[] first = SerializedMessage.MARSHALLER.stream(broadcast).readAllBytes();
+        byte[] second = SerializedMessage.MARSHALLER.stream(broadcast).readAllBytes();
+
+        assertArrayEquals(message(7).toByteArray(), first);
+        assertArrayEquals(first, second);
+        assertSame(broadcast.bytes(), broadcast.bytes());
+        assertEquals(message(7), SerializedMessage.MARSHALLER.parse(new ByteArrayInputStream(first)).message());
+    }
+
+    private static class FakeServerStream extends ServerCallStreamObserver<SerializedMessage>
+    {
+        final List<String> received = new ArrayList<>();
+        volatile boolean ready = true;
+        Throwable error;
+        private Runnable onReady;
+
+        void becomeReady()
+        {
+            ready = true;
+            onReady.run();
+        }
+
+        @Override
+        public boolean isReady()
+        {
+            return ready;
+        }
+
+        @Override
+        public void setOnReadyHandler(Runnable onReadyHandler)
+        {
+            this.onReady = onReadyHandler;
+        }
+
+        @Override
+        public void onNext(SerializedMessage value)
+        {
+            received.add(value.message().getContent());
+        }
+
+        @Override
+        public void onError(Throwable t)
+        {
+            error = t;
+        }
+
+        @Override
+        public void onCompleted()
+        {
+        }
+
+        @Override
+        public boolean isCancelled()
+        {
+            return false;
+        }
+
+        @Override
+        public void setOnCancelHandler(Runnable onCancelHandler)
+        {
+        }
+
+        @Override
+        public void setCompression(String compression)
+        {
+        }
+
+        @Override
+        public void disableAutoInboundFlowControl()
+        {
+        }
+
+        @Override
+        public void request(int count)
+        {
+        }
+
+        @Override
+        public void setMessageCompression(boolean enable)
+        {
+        }
+    }
+}
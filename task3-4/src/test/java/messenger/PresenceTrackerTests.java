@@ -0,0 +1,78 @@
+package messenger;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PresenceTrackerTests
+{
+    // The window is long enough that only the explicit flush() calls below publish anything
+    private static final long NEVER = 3_600_000;
+
+    @Test
+    void changesInOneWindowGoOutAsOneDelta()
+    {
+        List<Messenger.PresenceUpdate> published = new ArrayList<>();
+        List<Messenger.PresenceUpdate> forwarded = new ArrayList<>();
+        try (PresenceTracker tracker = new PresenceTracker(NEVER, 16, (update, origin) ->
+        {
+            published.add(update);
+            forwarded.add(origin);
+        }))
+        {
+            tracker.set("alice", true, true);
+            tracker.set("bob", true, false);
+            tracker.set("carol", true, true);
+            tracker.set("carol", false, true);
+            tracker.flush();
+
+            assertEquals(1, published.size());
+            assertEquals(1, published.get(0).getVersion());
+            assertEquals(List.of("alice", "bob"), published.get(0).getJoinedList());
+            assertEquals(0, published.get(0).getLeftCount());
+            // Only changes of users on this node are passed to other nodes
+            assertEquals(List.of("alice"), forwarded.get(0).getJoinedList());
+
+            tracker.flush();
+            assertEquals(1, published.size());
+        }
+    }
+
+    @Test
+    void knownVersionGetsDeltaAndUnknownGetsSnapshot()
+    {
+        try (PresenceTracker tracker = new PresenceTracker(NEVER, 2, (update, origin) -> { }))
+        {
+            tracker.set("alice", true, true);
+            tracker.flush();
+            tracker.set("bob", true, true);
+            tracker.flush();
+            tracker.set("alice", false, true);
+            tracker.flush();
+
+            Messenger.PresenceUpdate delta = tracker.since(1);
+            assertFalse(delta.getSnapshot());
+            assertEquals(3, delta.getVersion());
+            assertEquals(List.of("bob"), delta.getJoinedList());
+            assertEquals(List.of("alice"), delta.getLeftList());
+
+            assertEquals(0, tracker.since(3).getJoinedCount() + tracker.since(3).getLeftCount());
+
+            tracker.set("carol", true, true);
+            tracker.flush();
+
+            // Version 2 has dropped out of the two-entry log
+            Messenger.PresenceUpdate snapshot = tracker.since(1);
+            assertTrue(snapshot.getSnapshot());
+            assertEquals(4, snapshot.getVersion());
+            assertEquals(Set.of("bob", "carol"), Set.copyOf(snapshot.getUsersList()));
+            assertTrue(tracker.since(0).getSnapshot());
+        }
+    }
+}
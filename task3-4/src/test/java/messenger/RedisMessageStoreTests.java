@@ -0,0 +1,68 @@
+package messenger;
+
+import org.junit.jupiter.api.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.params.ScanParams;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class RedisMessageStoreTests
+{
+    @Test
+    void secretsAreKeptInExpiringKeysOutsideTheInbox() throws Exception
+    {
+        try (EmbeddedRedis redis = new EmbeddedRedis();
+             RedisMessageStore store = new RedisMessageStore("127.0.0.1", redis.port(), 2);
+             Jedis jedis = new Jedis("127.0.0.1", redis.port()))
+        {
+            store.storeMessage("bob", "alice", "hello", false, 0);
+            store.storeMessage("bob", "alice", "psst", true, 10);
+            assertEquals(1, secrets(jedis));
+
+            assertEquals(List.of(new MessageStore.StoredMessage("bob", "hello", false),
+                    new MessageStore.StoredMessage("bob", "psst", true)), store.drainMessages("alice"));
+            assertEquals(0, secrets(jedis));
+        }
+    }
+
+    @Test
+    void messagesOfTheOldFormatAreMovedIntoInboxes() throws Exception
+    {
+        try (EmbeddedRedis redis = new EmbeddedRedis();
+             RedisMessageStore store = new RedisMessageStore("127.0.0.1", redis.port(), 2);
+             Jedis jedis = new Jedis("127.0.0.1", redis.port()))
+        {
+            jedis.hset("msg:alice:1", Map.of("from", "bob", "content", "from before", "secret", "false"));
+            jedis.hset("msg:carol:2", Map.of("from", "bob", "content", "also old", "secret", "false"));
+
+            assertEquals(2, store.migrateLegacyMessages());
+            assertEquals(0, store.migrateLegacyMessages());
+            assertEquals(List.of(new MessageStore.StoredMessage("bob", "from before", false)), store.drainMessages("alice"));
+            assertEquals(List.of(new MessageStore.StoredMessage("bob", "also old", false)), store.drainMessages("carol"));
+        }
+    }
+
+    @Test
+    void spillListsKeepOnlyTheNewestMessages() throws Exception
+    {
+        try (EmbeddedRedis redis = new EmbeddedRedis();
+             RedisMessageStore store = new RedisMessageStore("127.0.0.1", redis.port(), 2, 256, 3, 60))
+        {
+            for (int i = 0; i < 5; i++) store.spill("spill:news:alice", new byte[] {(byte) i});
+
+            List<byte[]> spilled = store.takeSpilled("spill:news:alice");
+            assertEquals(3, spilled.size());
+            assertEquals(2, spilled.get(0)[0]);
+            assertEquals(4, spilled.get(2)[0]);
+            assertEquals(List.of(), store.takeSpilled("spill:news:alice"));
+        }
+    }
+
+    private static int secrets(Jedis jedis)
+    {
+        return jedis.scan(ScanParams.SCAN_POINTER_START, new ScanParams().match("inbox-secret:*")).getResult().size();
+    }
+}
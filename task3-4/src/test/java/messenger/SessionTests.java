@@ -0,0 +1,332 @@
+package messenger;
+
+import io.grpc.Context;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+public class SessionTests
+{
+    private static EmbeddedRedis redis;
+    private static RedisMessageStore store;
+    private static Main.MessengerServiceImpl service;
+    private static Server server;
+    private static ManagedChannel channel;
+
+    @BeforeAll
+    static void start() throws Exception
+    {
+        redis = new EmbeddedRedis();
+        store = new RedisMessageStore("127.0.0.1", redis.port(), 8);
+        String name = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(name)
+                .addService(service = new Main.MessengerServiceImpl(store))
+                .build()
+                .start();
+        channel = InProcessChannelBuilder.forName(name).build();
+    }
+
+    @AfterAll
+    static void stop() throws Exception
+    {
+        channel.shutdownNow();
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        store.close();
+        redis.close();
+    }
+
+    @Test
+    void sendIsAcknowledgedAndDelivered() throws Exception
+    {
+        TestSession alice = TestSession.open("session_alice");
+        TestSession bob = TestSession.open("session_bob");
+        // Otherwise the send can beat bob's registration and go to his offline inbox
+        bob.next(m -> "Opened".equals(m.getStatus()));
+
+        alice.send(7, "session_bob", "hi");
+
+        Messenger.MessageResponse ack = alice.next(m -> m.getAckId() != 0);
+        assertEquals(7, ack.getAckId());
+        assertEquals("Delivered", ack.getStatus());
+
+        Messenger.MessageResponse msg = bob.next(m -> !m.getSystem());
+        assertEquals("session_alice", msg.getFrom());
+        assertEquals("hi", msg.getContent());
+
+        alice.close();
+        bob.close();
+    }
+
+    @Test
+    void offlineMessagesAreReplayedOnOpen() throws Exception
+    {
+        TestSession carol = TestSession.open("session_carol");
+        carol.send(1, "session_dave", "while you were away");
+        carol.next(m -> m.getAckId() == 1);
+
+        TestSession dave = TestSession.open("session_dave");
+        assertEquals("while you were away", dave.next(m -> !m.getSystem()).getContent());
+
+        carol.close();
+        dave.close();
+    }
+
+    @Test
+    void secondSessionForSameUserIsRejected() throws Exception
+    {
+        TestSession first = TestSession.open("session_erin");
+        first.next(m -> "Opened".equals(m.getStatus()));
+        TestSession second = TestSession.open("session_erin");
+
+        Throwable error = second.error.get(5, TimeUnit.SECONDS);
+        assertEquals(Status.Code.ALREADY_EXISTS, Status.fromThrowable(error).getCode());
+
+        first.close();
+    }
+
+    @Test
+    void legacyReceiveStreamCannotTakeOverALiveSession() throws Exception
+    {
+        TestSession mia = TestSession.open("session_mia");
+        mia.next(m -> "Opened".equals(m.getStatus()));
+
+        TestSession legacy = new TestSession();
+        MessengerServiceGrpc.newStub(channel).receiveMessages(
+                Messenger.ReceiveRequest.newBuilder().setUsername("session_mia").build(), legacy);
+        Throwable error = legacy.error.get(5, TimeUnit.SECONDS);
+        assertEquals(Status.Code.ALREADY_EXISTS, Status.fromThrowable(error).getCode());
+
+        MessengerServiceGrpc.newBlockingStub(channel).sendMessage(Messenger.MessageRequest.newBuilder()
+                .setFrom("session_ned").setTo("session_mia").setContent("still here").build());
+        assertEquals("still here", mia.next(m -> !m.getSystem()).getContent());
+
+        mia.close();
+    }
+
+    @Test
+    void presenceChangesArriveAsVersionedDeltas() throws Exception
+    {
+        TestSession frank = TestSession.open("session_frank");
+        long opened = frank.next(m -> "Opened".equals(m.getStatus())).getPresence().getVersion();
+
+        TestSession grace = TestSession.open("session_grace");
+        Messenger.PresenceUpdate joined = frank.next(m -> "Presence".equals(m.getStatus())
+                && m.getPresence().getJoinedList().contains("session_grace")).getPresence();
+        assertTrue(joined.getVersion() > opened);
+
+        grace.close();
+        Messenger.PresenceUpdate left = frank.next(m -> "Presence".equals(m.getStatus())
+                && m.getPresence().getLeftList().contains("session_grace")).getPresence();
+        assertTrue(left.getVersion() > joined.getVersion());
+
+        frank.close();
+    }
+
+    @Test
+    void unackedMessagesAreReplayedAfterReconnect() throws Exception
+    {
+        TestSession ivan = TestSession.open("session_ivan", true);
+        ivan.next(m -> "Opened".equals(m.getStatus()));
+        TestSession judy = TestSession.open("session_judy");
+
+        judy.send(1, "session_ivan", "first");
+        judy.send(2, "session_ivan", "second");
+        assertEquals("Delivered", judy.next(m -> m.getAckId() == 1).getStatus());
+        assertEquals("Delivered", judy.next(m -> m.getAckId() == 2).getStatus());
+
+        Messenger.MessageResponse first = ivan.next(m -> !m.getSystem());
+        assertEquals("first", first.getContent());
+        ivan.ack(first.getMessageId());
+        assertEquals("second", ivan.next(m -> !m.getSystem()).getContent());
+        ivan.close();
+        ivan.completed.get(5, TimeUnit.SECONDS);
+
+        TestSession again = TestSession.open("session_ivan", true);
+        assertEquals("second", again.next(m -> !m.getSystem()).getContent());
+
+        judy.send(3, "session_nobody", "anyone?");
+        assertEquals("Stored", judy.next(m -> m.getAckId() == 3).getStatus());
+
+        again.close();
+        judy.close();
+    }
+
+    @Test
+    void disconnectEndsTheSessionStream() throws Exception
+    {
+        TestSession mia = TestSession.open("session_mia");
+        mia.next(m -> "Opened".equals(m.getStatus()));
+
+        MessengerServiceGrpc.newBlockingStub(channel)
+                .disconnect(Messenger.DisconnectRequest.newBuilder().setUsername("session_mia").build());
+        mia.completed.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void cancelledAndAbandonedSessionsAreEvicted() throws Exception
+    {
+        MessengerServiceGrpc.MessengerServiceBlockingStub stub = MessengerServiceGrpc.newBlockingStub(channel);
+        Metrics metrics = new Metrics();
+        service.registerMetrics(metrics);
+
+        // Legacy pair: Connect, then a receive stream the client cancels without Disconnect
+        stub.connect(Messenger.ConnectRequest.newBuilder().setUsername("session_leo").build());
+        Context.CancellableContext context = Context.current().withCancellation();
+        TestSession leo = new TestSession();
+        context.run(() -> MessengerServiceGrpc.newStub(channel).receiveMessages(
+                Messenger.ReceiveRequest.newBuilder().setUsername("session_leo").build(), leo));
+        Messenger.MessageRequest ping = Messenger.MessageRequest.newBuilder()
+                .setFrom("session_kim").setTo("session_leo").setContent("ping").build();
+        while (!"Delivered".equals(stub.sendMessage(ping).getStatus())) Thread.sleep(10);
+
+        context.cancel(null);
+        String cancelled = "messenger_sessions_evicted_total{reason=\"cancelled\"} 1";
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!metrics.scrape().contains(cancelled) && System.nanoTime() < deadline) Thread.sleep(10);
+        assertTrue(metrics.scrape().contains(cancelled));
+
+        // A Connect never followed by any stream is left to the sweeper
+        stub.connect(Messenger.ConnectRequest.newBuilder().setUsername("session_kate").build());
+        assertTrue(service.sweep(0) >= 1);
+        assertEquals(0, service.sweep(0));
+        assertEquals("Stored", stub.sendMessage(ping.toBuilder().setTo("session_kate").build()).getStatus());
+    }
+
+    @Test
+    void newChannelsAreAnnouncedOnlyToMatchingWatchersAndSurviveRestart() throws Exception
+    {
+        TestSession henry = TestSession.open("session_henry");
+        henry.watch("jazz");
+        // Requests are handled in order, so the ack means the watch is in place
+        henry.send(1, "session_henry", "fence");
+        henry.next(m -> m.getAckId() == 1);
+
+        MessengerServiceGrpc.MessengerServiceBlockingStub stub = MessengerServiceGrpc.newBlockingStub(channel);
+        stub.createChannel(Messenger.CreateChannelRequest.newBuilder()
+                .setCreator("session_ivy").setName("session_rock").addTags("rock").build());
+        stub.createChannel(Messenger.CreateChannelRequest.newBuilder()
+                .setCreator("session_ivy").setName("session_jazz").addTags("jazz").build());
+
+        Messenger.MessageResponse announced = henry.next(m -> m.getTo().startsWith("CHANNEL:"));
+        assertEquals("CHANNEL:session_jazz", announced.getTo());
+
+        // A fresh service rebuilds its tag index from Redis
+        String name = InProcessServerBuilder.generateName();
+        Server restarted = InProcessServerBuilder.forName(name)
+                .addService(new Main.MessengerServiceImpl(store))
+                .build()
+                .start();
+        ManagedChannel restartedChannel = InProcessChannelBuilder.forName(name).build();
+        try
+        {
+            Messenger.SearchChannelsResponse found = MessengerServiceGrpc.newBlockingStub(restartedChannel)
+                    .searchChannels(Messenger.SearchChannelsRequest.newBuilder()
+                            .addTags("rock").setNamePrefix("session_").build());
+            assertEquals(1, found.getChannelsCount());
+            assertEquals("session_rock", found.getChannels(0).getId());
+            assertEquals("session_ivy", found.getChannels(0).getCreator());
+        }
+        finally
+        {
+            restartedChannel.shutdownNow();
+            restarted.shutdownNow();
+        }
+
+        henry.close();
+    }
+
+    private static class TestSession implements StreamObserver<Messenger.MessageResponse>
+    {
+        private final BlockingQueue<Messenger.MessageResponse> received = new LinkedBlockingQueue<>();
+        private final CompletableFuture<Throwable> error = new CompletableFuture<>();
+        private final CompletableFuture<Void> completed = new CompletableFuture<>();
+        private StreamObserver<Messenger.SessionRequest> requests;
+
+        static TestSession open(String username)
+        {
+            return open(username, false);
+        }
+
+        static TestSession open(String username, boolean acks)
+        {
+            TestSession session = new TestSession();
+            session.requests = MessengerServiceGrpc.newStub(channel).session(session);
+            session.requests.onNext(Messenger.SessionRequest.newBuilder()
+                    .setOpen(Messenger.SessionOpen.newBuilder().setUsername(username).setAcks(acks))
+                    .build());
+            return session;
+        }
+
+        void ack(long messageId)
+        {
+            requests.onNext(Messenger.SessionRequest.newBuilder()
+                    .setAck(Messenger.SessionAck.newBuilder().setUpTo(messageId))
+                    .build());
+        }
+
+        void watch(String tag)
+        {
+            requests.onNext(Messenger.SessionRequest.newBuilder()
+                    .setWatch(Messenger.SessionWatch.newBuilder().addTags(tag))
+                    .build());
+        }
+
+        void send(long id, String to, String content)
+        {
+            requests.onNext(Messenger.SessionRequest.newBuilder()
+                    .setSend(Messenger.SessionSend.newBuilder().setId(id).setTo(to).setContent(content))
+                    .build());
+        }
+
+        Messenger.MessageResponse next(Predicate<Messenger.MessageResponse> match)
+                throws InterruptedException
+        {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (System.nanoTime() < deadline)
+            {
+                Messenger.MessageResponse msg = received.poll(100, TimeUnit.MILLISECONDS);
+                if (msg != null && match.test(msg)) return msg;
+            }
+            return fail("No matching message within 5 s");
+        }
+
+        void close()
+        {
+            requests.onCompleted();
+        }
+
+        @Override
+        public void onNext(Messenger.MessageResponse value)
+        {
+            received.add(value);
+        }
+
+        @Override
+        public void onError(Throwable t)
+        {
+            error.complete(t);
+        }
+
+        @Override
+        public void onCompleted()
+        {
+            completed.complete(null);
+        }
+    }
+}
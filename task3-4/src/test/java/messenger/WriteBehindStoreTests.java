@@ -0,0 +1,136 @@
+package messenger;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class WriteBehindStoreTests
+{
+    private static class RecordingStore extends InMemoryMessageStore
+    {
+        final List<Integer> batches = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void storeMessages(List<OfflineMessage> messages)
+        {
+            batches.add(messages.size());
+            super.storeMessages(messages);
+        }
+    }
+
+    private static List<String> contents(List<MessageStore.StoredMessage> inbox)
+    {
+        return inbox.stream().map(MessageStore.StoredMessage::content).toList();
+    }
+
+    @Test
+    void drainWaitsForQueuedMessagesInsteadOfTheWindow()
+    {
+        RecordingStore backing = new RecordingStore();
+        try (WriteBehindStore store = new WriteBehindStore(backing, 4, TimeUnit.MINUTES.toMillis(1), 1024))
+        {
+            for (int i = 0; i < 10; i++) store.storeMessage("alice", "bob", "m" + i, false, 10);
+
+            long started = System.nanoTime();
+            List<MessageStore.StoredMessage> inbox = store.drainMessages("bob");
+            assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(5));
+
+            assertEquals(10, inbox.size());
+            for (int i = 0; i < 10; i++) assertEquals("m" + i, inbox.get(i).content());
+            assertEquals(List.of(4, 4, 2), backing.batches);
+        }
+    }
+
+    @Test
+    void windowFlushesAPartialBatch() throws Exception
+    {
+        RecordingStore backing = new RecordingStore();
+        try (WriteBehindStore store = new WriteBehindStore(backing, 256, 20, 1024))
+        {
+            store.storeMessage("alice", "carol", "hello", false, 10);
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (backing.batches.isEmpty() && System.nanoTime() < deadline) Thread.sleep(5);
+
+            assertEquals(List.of(1), backing.batches);
+            assertEquals("hello", backing.drainMessages("carol").get(0).content());
+        }
+    }
+
+    @Test
+    void messagesStoredWhileClosingAreWrittenAfterTheQueue() throws Exception
+    {
+        // Holds the writer on the first message until released
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingStore backing = new RecordingStore()
+        {
+            @Override
+            public void storeMessages(List<OfflineMessage> messages)
+            {
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                super.storeMessages(messages);
+            }
+        };
+        WriteBehindStore store = new WriteBehindStore(backing, 1, TimeUnit.MINUTES.toMillis(1), 16);
+        store.storeMessage("alice", "bob", "m0", false, 10);
+
+        Thread closer = new Thread(store::close);
+        closer.start();
+        Thread.sleep(100);
+        Thread sender = new Thread(() ->
+        {
+            for (int i = 1; i <= 5; i++) store.storeMessage("alice", "bob", "m" + i, false, 10);
+        });
+        sender.start();
+        Thread.sleep(100);
+        release.countDown();
+        closer.join();
+        sender.join();
+
+        assertEquals(List.of("m0", "m1", "m2", "m3", "m4", "m5"), contents(backing.drainMessages("bob")));
+    }
+
+    @Test
+    void failedBatchesAreRetriedAndOnlyRejectedMessagesDropped()
+    {
+        // Down for the first two writes, and never takes a message saying "bad"
+        AtomicInteger outages = new AtomicInteger(2);
+        InMemoryMessageStore backing = new InMemoryMessageStore()
+        {
+            @Override
+            public void storeMessages(List<OfflineMessage> messages)
+            {
+                if (outages.getAndDecrement() > 0) throw new IllegalStateException("store down");
+                if (messages.stream().anyMatch(m -> m.content().equals("bad")))
+                {
+                    throw new IllegalArgumentException("rejected");
+                }
+                super.storeMessages(messages);
+            }
+        };
+        try (WriteBehindStore store = new WriteBehindStore(backing, 256, 5, 1024))
+        {
+            store.storeMessage("alice", "bob", "first", false, 10);
+            assertEquals(List.of("first"), contents(store.drainMessages("bob")));
+
+            store.storeMessage("alice", "bob", "m0", false, 10);
+            store.storeMessage("alice", "bob", "bad", false, 10);
+            store.storeMessage("alice", "bob", "m2", false, 10);
+            assertEquals(List.of("m0", "m2"), contents(store.drainMessages("bob")));
+        }
+    }
+}